@@ -1,6 +1,7 @@
 package com.alibabacloud.jenkins.ecs;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,10 +11,13 @@ import com.alibabacloud.credentials.plugin.auth.AlibabaCredentials;
 import com.alibabacloud.credentials.plugin.auth.AlibabaKeyPairUtils;
 import com.alibabacloud.credentials.plugin.auth.AlibabaPrivateKey;
 import com.alibabacloud.credentials.plugin.util.CredentialsHelper;
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsAsyncClient;
 import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClientRegistry;
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsPageIterator;
 import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsPageException;
 import com.alibabacloud.jenkins.ecs.util.AlibabaEcsFactory;
-import com.alibabacloud.jenkins.ecs.util.CloudHelper;
 import com.alibabacloud.jenkins.ecs.util.NetworkUtils;
 import com.aliyuncs.ecs.model.v20140526.DescribeAvailableResourceRequest;
 import com.aliyuncs.ecs.model.v20140526.DescribeImagesRequest;
@@ -27,18 +31,21 @@ import com.aliyuncs.ecs.model.v20140526.DescribeVSwitchesResponse;
 import com.aliyuncs.ecs.model.v20140526.DescribeVSwitchesResponse.VSwitch;
 import com.aliyuncs.ecs.model.v20140526.DescribeVpcsResponse;
 import com.aliyuncs.ecs.model.v20140526.DescribeVpcsResponse.Vpc;
+import com.aliyuncs.exceptions.ClientException;
 import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Failure;
 import hudson.model.ItemGroup;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.PeriodicWork;
 import hudson.security.ACL;
 import hudson.security.Permission;
@@ -48,11 +55,13 @@ import hudson.util.FormValidation;
 import hudson.util.HttpResponses;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.json.JSONObject;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -69,9 +78,17 @@ import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 public class AlibabaCloud extends Cloud {
 
     private transient ReentrantLock followerCountingLock = new ReentrantLock();
+    private transient AlibabaEcsProvisionPipeline provisionPipeline;
+    private transient AlibabaEcsFollowerIndex followerIndex;
+    private transient AlibabaEcsInstanceReconciler instanceReconciler;
+    private transient AlibabaEcsTerminationQueue terminationQueue;
+    private transient AlibabaEcsSpotPriceCache spotPriceCache;
+    private transient AlibabaEcsAsyncClient asyncClient;
+    private transient volatile AlibabaEcsTemplateIndex templateIndex;
     public static final String CLOUD_ID_PREFIX = "ecs-";
     public static final String DEFAULT_REMOTE_FS = "/root";
     public static final String DEFAULT_ECS_REGION = "cn-beijing";
+    private static final int VSW_PAGE_SIZE = 50;
 
     @CheckForNull
     private String credentialsId;
@@ -114,10 +131,14 @@ public class AlibabaCloud extends Cloud {
      */
     private Boolean attachPublicIp = Boolean.TRUE;
 
+    /**
+     * 控制器上的JDK安装包(tar.gz)路径, 不为空时启动节点使用该JDK而不是yum安装
+     */
+    private String jdkTarballPath;
 
     private List<AlibabaEcsFollowerTemplate> templates;
 
-    private transient AlibabaEcsClient connection;
+    private transient volatile AlibabaEcsClient connection;
 
     public static final String CLOUD_ID = "Alibaba Cloud ECS";
 
@@ -180,18 +201,28 @@ public class AlibabaCloud extends Cloud {
             // TODO: handle exception
             return null;
         }
-        // TODO: choose instance type
-        return instanceTypes.get(0);
+        // 价格缓存在readResolve中创建, 此时只能读取被替换的cloud中已缓存的价格, 新建的缓存中还没有价格
+        AlibabaCloud replaced = getReplacedCloud();
+        String cheapest = null == replaced ? null
+            : replaced.spotPriceCache.cheapestInstanceType(zone, 2, 8.0f, instanceTypes);
+        return StringUtils.isBlank(cheapest) ? instanceTypes.get(0) : cheapest;
     }
 
     private String getOrCreateDefaultVsw(String vpc, String zone) {
-        List<VSwitch> vsws = connection.describeVsws("", vpc);
         List<String> otherSubCidrBlocks = Lists.newArrayList();
-        for (VSwitch vswitch : vsws) {
-            if (vswitch.getZoneId().equals(zone)) {
-                return vswitch.getVSwitchId();
+        // 找到可用区内的交换机后不再查询剩余的页
+        try (AlibabaEcsPageIterator<VSwitch> vsws = connection.iterateVsws("", vpc, VSW_PAGE_SIZE, 0)) {
+            while (vsws.hasNext()) {
+                VSwitch vswitch = vsws.next();
+                if (vswitch.getZoneId().equals(zone)) {
+                    return vswitch.getVSwitchId();
+                }
+                otherSubCidrBlocks.add(vswitch.getCidrBlock());
             }
-            otherSubCidrBlocks.add(vswitch.getCidrBlock());
+        } catch (AlibabaEcsPageException e) {
+            // 查询失败时不知道已有的交换机和网段, 不能新建交换机
+            log.error("describeVsws error, skip creating default vsw. vpc: {} zone: {}", vpc, zone, e);
+            return "";
         }
         Vpc vpcInstance = null;
         if (StringUtils.isNotEmpty(vpc)) {
@@ -220,7 +251,13 @@ public class AlibabaCloud extends Cloud {
 
     private String getOrCreateDefaultVpc(String region) {
         // 1. get vpc if exists
-        List<Vpc> vpcs = connection.describeVpcs();
+        List<Vpc> vpcs;
+        try {
+            vpcs = connection.describeVpcsStrictly();
+        } catch (ClientException e) {
+            log.error("describeVpcs error, skip creating default vpc. region: {}", region, e);
+            return null;
+        }
         if (CollectionUtils.isNotEmpty(vpcs)) {
             Vpc vpc = vpcs.get(0);
             log.info("getOrCreateDefaultVpc use default vpc. region: {} vpc: {}", region, vpc);
@@ -244,10 +281,222 @@ public class AlibabaCloud extends Cloud {
         return labelString;
     }
 
+    public int getWarmPoolSize() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getWarmPoolSize();
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setWarmPoolSize(warmPoolSize);
+        }
+    }
+
+    public int getIdleTerminationMinutes() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getIdleTerminationMinutes();
+    }
+
+    @DataBoundSetter
+    public void setIdleTerminationMinutes(int idleTerminationMinutes) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setIdleTerminationMinutes(idleTerminationMinutes);
+        }
+    }
+
+    public int getMaxTotalUses() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getMaxTotalUses();
+    }
+
+    @DataBoundSetter
+    public void setMaxTotalUses(int maxTotalUses) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setMaxTotalUses(maxTotalUses);
+        }
+    }
+
+    public int getSshTimeoutSeconds() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? AlibabaEcsFollowerTemplate.DEFAULT_SSH_TIMEOUT_SECONDS
+            : template.getSshTimeoutSeconds();
+    }
+
+    @DataBoundSetter
+    public void setSshTimeoutSeconds(int sshTimeoutSeconds) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setSshTimeoutSeconds(sshTimeoutSeconds);
+        }
+    }
+
+    public int getSshInitialDelaySeconds() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getSshInitialDelaySeconds();
+    }
+
+    @DataBoundSetter
+    public void setSshInitialDelaySeconds(int sshInitialDelaySeconds) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setSshInitialDelaySeconds(sshInitialDelaySeconds);
+        }
+    }
+
+    public List<AlibabaEcsProvisionCandidate> getFallbackCandidates() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? Lists.newArrayList() : template.getFallbackCandidates();
+    }
+
+    @DataBoundSetter
+    public void setFallbackCandidates(List<AlibabaEcsProvisionCandidate> fallbackCandidates) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setFallbackCandidates(fallbackCandidates);
+        }
+    }
+
+    public int getMinCpu() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getMinCpu();
+    }
+
+    @DataBoundSetter
+    public void setMinCpu(int minCpu) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setMinCpu(minCpu);
+        }
+    }
+
+    public float getMinMemoryGb() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? 0 : template.getMinMemoryGb();
+    }
+
+    @DataBoundSetter
+    public void setMinMemoryGb(float minMemoryGb) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setMinMemoryGb(minMemoryGb);
+        }
+    }
+
+    public Float getSpotPriceLimit() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? null : template.getSpotPriceLimit();
+    }
+
+    @DataBoundSetter
+    public void setSpotPriceLimit(Float spotPriceLimit) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setSpotPriceLimit(spotPriceLimit);
+        }
+    }
+
+    public boolean isInboundAgent() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null != template && template.isInboundAgent();
+    }
+
+    @DataBoundSetter
+    public void setInboundAgent(boolean inboundAgent) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setInboundAgent(inboundAgent);
+        }
+    }
+
+    public boolean isCloudAssistantBootstrap() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null != template && template.isCloudAssistantBootstrap();
+    }
+
+    @DataBoundSetter
+    public void setCloudAssistantBootstrap(boolean cloudAssistantBootstrap) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setCloudAssistantBootstrap(cloudAssistantBootstrap);
+        }
+    }
+
+    public boolean isInitScriptInUserData() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null != template && template.isInitScriptInUserData();
+    }
+
+    @DataBoundSetter
+    public void setInitScriptInUserData(boolean initScriptInUserData) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setInitScriptInUserData(initScriptInUserData);
+        }
+    }
+
+    public boolean isUseLaunchTemplate() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null != template && template.isUseLaunchTemplate();
+    }
+
+    @DataBoundSetter
+    public void setUseLaunchTemplate(boolean useLaunchTemplate) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setUseLaunchTemplate(useLaunchTemplate);
+        }
+    }
+
+    public Long getPinnedLaunchTemplateVersion() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? null : template.getPinnedLaunchTemplateVersion();
+    }
+
+    @DataBoundSetter
+    public void setPinnedLaunchTemplateVersion(Long pinnedLaunchTemplateVersion) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setPinnedLaunchTemplateVersion(pinnedLaunchTemplateVersion);
+        }
+    }
+
+    public String getBakedImageId() {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        return null == template ? null : template.getBakedImageId();
+    }
+
+    @DataBoundSetter
+    public void setBakedImageId(String bakedImageId) {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null != template) {
+            template.setBakedImageId(bakedImageId);
+        }
+    }
+
+    public String getJdkTarballPath() {
+        return jdkTarballPath;
+    }
+
+    @DataBoundSetter
+    public void setJdkTarballPath(String jdkTarballPath) {
+        this.jdkTarballPath = StringUtils.trimToNull(jdkTarballPath);
+    }
+
     private String createDefaultSecurityGroup(String region, String vpcId) {
         // 1. get or create default sg
         String sgId;
-        List<SecurityGroup> securityGroups = connection.describeSecurityGroups(vpcId);
+        List<SecurityGroup> securityGroups;
+        try {
+            securityGroups = connection.describeSecurityGroupsStrictly(vpcId);
+        } catch (ClientException e) {
+            log.error("describeSecurityGroups error, skip creating default sg. region: {} vpcId: {}", region, vpcId,
+                e);
+            return null;
+        }
         if (CollectionUtils.isEmpty(securityGroups)) {
             sgId = connection.createSecurityGroup(vpcId);
         } else {
@@ -305,14 +554,52 @@ public class AlibabaCloud extends Cloud {
     // 注意, readResolve必须返回this
     protected Object readResolve() {
         this.followerCountingLock = new ReentrantLock();
+        AlibabaCloud replaced = getReplacedCloud();
+        if (null != replaced) {
+            // 保存配置时用新的cloud替换同名的旧cloud, 沿用旧cloud的组件, 等待中的释放和创建中的计数不会丢失
+            this.provisionPipeline = replaced.provisionPipeline;
+            this.followerIndex = replaced.getFollowerIndex();
+            this.instanceReconciler = replaced.instanceReconciler;
+            this.terminationQueue = replaced.terminationQueue;
+            this.spotPriceCache = replaced.spotPriceCache;
+            this.asyncClient = replaced.asyncClient;
+            instanceReconciler.rebind(this);
+            terminationQueue.rebind(this);
+            spotPriceCache.rebind(this);
+            asyncClient.rebind(this::connect);
+        } else {
+            this.provisionPipeline = new AlibabaEcsProvisionPipeline(name);
+            this.instanceReconciler = new AlibabaEcsInstanceReconciler(this);
+            this.terminationQueue = new AlibabaEcsTerminationQueue(this);
+            this.spotPriceCache = new AlibabaEcsSpotPriceCache(this);
+            this.asyncClient = new AlibabaEcsAsyncClient(name, this::connect);
+        }
         for (AlibabaEcsFollowerTemplate template : templates) {
             template.setParent(this);
         }
+        this.templateIndex = new AlibabaEcsTemplateIndex(templates);
         resolvePrivateKey();
         connect();
         return this;
     }
 
+    /**
+     * @return Jenkins中同名的其他cloud实例, 即保存配置时将被当前实例替换的cloud
+     */
+    private AlibabaCloud getReplacedCloud() {
+        Jenkins jenkinsInstance = Jenkins.getInstanceOrNull();
+        if (null == jenkinsInstance) {
+            return null;
+        }
+        for (Cloud cloud : jenkinsInstance.clouds) {
+            if (cloud != this && cloud instanceof AlibabaCloud && name.equals(cloud.name)
+                && null != ((AlibabaCloud)cloud).instanceReconciler) {
+                return (AlibabaCloud)cloud;
+            }
+        }
+        return null;
+    }
+
     public String getZone() {
         return zone;
     }
@@ -359,36 +646,135 @@ public class AlibabaCloud extends Cloud {
         return privateKey;
     }
 
+    /**
+     * 由{@link hudson.slaves.NodeProvisioner}根据队列中等待的任务数回调.
+     * 同一批次的节点通过一次RunInstances(Amount=N)创建, 每个节点对应一个PlannedNode, 节点上线后future完成.
+     */
     @Override
     public Collection<PlannedNode> provision(Label label, int excessWorkload) {
-        return null;
+        log.info("provision invoked. label: {} excessWorkload: {}", label, excessWorkload);
+        List<PlannedNode> plannedNodes = Lists.newArrayList();
+        AlibabaEcsFollowerTemplate template = getTemplate(label);
+        if (null == template || excessWorkload <= 0) {
+            return plannedNodes;
+        }
+        Jenkins jenkinsInstance = Jenkins.get();
+        if (jenkinsInstance.isQuietingDown() || jenkinsInstance.isTerminating()) {
+            log.info("provision skipped. Jenkins instance is quieting down or terminating");
+            return plannedNodes;
+        }
+        if (!connect().isAvailable()) {
+            // ECS API熔断期间不提交新的创建请求, 等待NodeProvisioner下一轮
+            log.warn("provision skipped. ECS API unavailable");
+            return plannedNodes;
+        }
+        List<CompletableFuture<Node>> futures;
+        try {
+            followerCountingLock.lock();
+            futures = provisionPipeline.submit(template, excessWorkload);
+        } finally {
+            followerCountingLock.unlock();
+        }
+        for (CompletableFuture<Node> future : futures) {
+            plannedNodes.add(new PlannedNode(template.getTemplateId(), future, 1));
+        }
+        return plannedNodes;
+    }
+
+    /**
+     * 节点即将被回收时立即补充新节点, 不等待NodeProvisioner下一轮计算
+     */
+    public void provisionReplacement(AlibabaEcsFollowerTemplate template, int amount) {
+        Jenkins jenkinsInstance = Jenkins.get();
+        if (jenkinsInstance.isQuietingDown() || jenkinsInstance.isTerminating()) {
+            return;
+        }
+        log.info("provision replacement. templateId: {} amount: {}", template.getTemplateId(), amount);
+        provisionPipeline.submit(template, amount);
     }
 
     @Override
     public boolean canProvision(Label label) {
-        log.debug("canProvision invoked");
-        return true;
+        return getTemplate(label) != null;
     }
 
     public String getVpc() {
         return vpc;
     }
 
+    public AlibabaEcsInstanceReconciler getInstanceReconciler() {
+        return instanceReconciler;
+    }
+
+    public AlibabaEcsTerminationQueue getTerminationQueue() {
+        return terminationQueue;
+    }
+
+    /**
+     * 不阻塞调用方的ECS API调用, 同一个cloud的并发调用数在这里统一限制
+     */
+    public AlibabaEcsAsyncClient getAsyncClient() {
+        return asyncClient;
+    }
+
+    public AlibabaEcsSpotPriceCache getSpotPriceCache() {
+        return spotPriceCache;
+    }
+
+    /**
+     * 首次访问时根据Jenkins中已有的节点初始化索引, 之后由节点事件增量维护
+     */
+    public synchronized AlibabaEcsFollowerIndex getFollowerIndex() {
+        if (null != followerIndex) {
+            return followerIndex;
+        }
+        AlibabaEcsFollowerIndex index = new AlibabaEcsFollowerIndex();
+        Jenkins jenkinsInstance = Jenkins.getInstanceOrNull();
+        if (null != jenkinsInstance) {
+            for (Node node : jenkinsInstance.getNodes()) {
+                if (!(node instanceof AlibabaEcsSpotFollower)) {
+                    continue;
+                }
+                AlibabaEcsSpotFollower follower = (AlibabaEcsSpotFollower)node;
+                if (!name.equals(follower.getCloudName())) {
+                    continue;
+                }
+                Computer computer = follower.toComputer();
+                boolean online = null != computer && computer.isOnline();
+                index.update(follower,
+                    online ? AlibabaEcsFollowerIndex.State.ONLINE : AlibabaEcsFollowerIndex.State.LAUNCHING);
+            }
+        }
+        followerIndex = index;
+        return followerIndex;
+    }
+
     private static String createCloudId(String cloudName) {
         return CLOUD_ID_PREFIX + cloudName.trim();
     }
 
     public AlibabaEcsClient connect() {
-        if (this.connection != null) {
+        AlibabaEcsClient client = connection;
+        if (client != null) {
+            return client;
+        }
+        synchronized (this) {
+            if (connection == null) {
+                reconnectToAlibabaCloudEcs();
+            }
             return connection;
         }
-        return reconnectToAlibabaCloudEcs();
     }
 
+    /**
+     * 按当前的AccessKey取得共享的client, AccessKey轮换后原子地切换到新的client
+     */
     public AlibabaEcsClient reconnectToAlibabaCloudEcs() {
         synchronized (this) {
-            connection = AlibabaEcsFactory.getInstance().connect(getCredentials(), getRegion());
-            return connection;
+            AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(getCredentials(), getRegion());
+            AlibabaEcsClientRegistry.get().bind(name, client);
+            connection = client;
+            return client;
         }
     }
 
@@ -410,10 +796,30 @@ public class AlibabaCloud extends Cloud {
         return remoteFs;
     }
 
+    /**
+     * 为模板烘焙预装环境的镜像, 完成后模板自动切换到新镜像
+     */
+    @RequirePOST
+    public HttpResponse doBakeImage(@QueryParameter String template) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        log.info("doBakeImage invoked template: {}", template);
+        AlibabaEcsFollowerTemplate alibabaEcsFollowerTemplate = StringUtils.isBlank(template) ? getTemplate()
+            : getTemplate(template);
+        if (null == alibabaEcsFollowerTemplate) {
+            throw HttpResponses.error(SC_BAD_REQUEST, "No such template: " + template);
+        }
+        new AlibabaEcsImageBaker(alibabaEcsFollowerTemplate).bakeAsync();
+        return HttpResponses.redirectViaContextPath("/computer/");
+    }
+
     @RequirePOST
     public HttpResponse doProvision(@QueryParameter String template) throws Exception {
         log.info("doProvision invoked template: {}", template);
-        AlibabaEcsFollowerTemplate alibabaEcsFollowerTemplate = getTemplate();
+        AlibabaEcsFollowerTemplate alibabaEcsFollowerTemplate = StringUtils.isBlank(template) ? getTemplate()
+            : getTemplate(template);
+        if (null == alibabaEcsFollowerTemplate) {
+            throw HttpResponses.error(SC_BAD_REQUEST, "No such template: " + template);
+        }
         final Jenkins jenkinsInstance = Jenkins.get();
         if (jenkinsInstance.isQuietingDown()) {
             throw HttpResponses.error(SC_BAD_REQUEST, "Jenkins instance is quieting down");
@@ -421,40 +827,18 @@ public class AlibabaCloud extends Cloud {
         if (jenkinsInstance.isTerminating()) {
             throw HttpResponses.error(SC_BAD_REQUEST, "Jenkins instance is terminating");
         }
+        // 只在准入阶段持有锁, 创建/注册/启动节点都在provisionPipeline中异步执行
         try {
             followerCountingLock.lock();
             // check how many spare followers should provision
-            int aliveCount = 0;
-            Computer[] computers = jenkinsInstance.getComputers();
-            for (Computer computer : computers) {
-                if (computer instanceof AlibabaEcsComputer) {
-                    AlibabaEcsSpotFollower follower = ((AlibabaEcsComputer)computer).getNode();
-                    if (null == follower) {
-                        continue;
-                    }
-                    String templateId = follower.getTemplateId();
-                    if (StringUtils.isEmpty(templateId)) {
-                        continue;
-                    }
-                    if (template.equals(templateId)) {
-                        aliveCount++;
-                    }
-                }
-            }
+            int aliveCount = getFollowerIndex().countAlive(alibabaEcsFollowerTemplate.getTemplateId());
             int provisionCount = alibabaEcsFollowerTemplate.getMinimumNumberOfInstances() - aliveCount;
             if (provisionCount <= 0) {
                 log.info("no need provision. minimumNumberOfInstances:{} aliveCount:{}",
                     alibabaEcsFollowerTemplate.getMinimumNumberOfInstances(), aliveCount);
                 return HttpResponses.redirectViaContextPath("/computer/");
             }
-            List<AlibabaEcsSpotFollower> provision = alibabaEcsFollowerTemplate.provision(provisionCount);
-            if (CollectionUtils.isEmpty(provision)) {
-                throw HttpResponses.error(SC_BAD_REQUEST, "followerTemplate.provision error");
-            }
-            // 将节点都加入jenkins里
-            for (AlibabaEcsSpotFollower alibabaEcsSpotFollower : provision) {
-                jenkinsInstance.addNode(alibabaEcsSpotFollower);
-            }
+            provisionPipeline.submit(alibabaEcsFollowerTemplate, provisionCount);
         } finally {
             followerCountingLock.unlock();
         }
@@ -550,7 +934,7 @@ public class AlibabaCloud extends Cloud {
                     DEFAULT_ECS_REGION, credentialsId);
                 return FormValidation.error("Credentials not found");
             }
-            AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
+            AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
             List<Region> regions = client.describeRegions();
             if (CollectionUtils.isEmpty(regions)) {
                 return FormValidation.error("Illegal ak/sk: " + credentialsId);
@@ -588,8 +972,8 @@ public class AlibabaCloud extends Cloud {
                         DEFAULT_ECS_REGION, credentialsId);
                     return model;
                 }
-                AlibabaEcsClient client = new AlibabaEcsClient(credentials, DEFAULT_ECS_REGION);
-                List<Region> regions = client.describeRegions();
+                AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, DEFAULT_ECS_REGION);
+                List<Region> regions = client.cached("describeRegions", client::describeRegionsStrictly);
                 for (Region region : regions) {
                     model.add(region.getLocalName(), region.getRegionId());
                 }
@@ -615,11 +999,12 @@ public class AlibabaCloud extends Cloud {
                         region, credentialsId);
                     return model;
                 }
-                AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
+                AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
                 DescribeImagesRequest req = new DescribeImagesRequest();
                 req.setOSType("linux");
                 req.setStatus("Available");
-                List<Image> images = client.describeImages(req);
+                List<Image> images = client.cached("describeImages:linux:Available",
+                    () -> client.describeImagesStrictly(req));
                 for (DescribeImagesResponse.Image image : images) {
                     model.add(image.getImageName(), image.getImageId());
                 }
@@ -670,8 +1055,8 @@ public class AlibabaCloud extends Cloud {
                         region, credentialsId);
                     return model;
                 }
-                AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
-                List<Vpc> vpcs = client.describeVpcs();
+                AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
+                List<Vpc> vpcs = client.cached("describeVpcs", client::describeVpcsStrictly);
 
                 for (DescribeVpcsResponse.Vpc vpc : vpcs) {
                     model.add(vpc.getVpcId(), vpc.getVpcId());
@@ -701,8 +1086,9 @@ public class AlibabaCloud extends Cloud {
                         region, vpc, credentialsId);
                     return model;
                 }
-                AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
-                List<SecurityGroup> securityGroups = client.describeSecurityGroups(vpc);
+                AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
+                List<SecurityGroup> securityGroups = client.cached("describeSecurityGroups:" + vpc,
+                    () -> client.describeSecurityGroupsStrictly(vpc));
                 for (DescribeSecurityGroupsResponse.SecurityGroup securityGroup : securityGroups) {
                     model.add(securityGroup.getSecurityGroupId(), securityGroup.getSecurityGroupId());
                 }
@@ -729,10 +1115,14 @@ public class AlibabaCloud extends Cloud {
                     region, credentialsId);
                 return model;
             }
-            AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
-            List<String> zones = client.describeAvailableZones();
-            for (String zone : zones) {
-                model.add(zone, zone);
+            AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
+            try {
+                List<String> zones = client.cached("describeAvailableZones", client::describeAvailableZonesStrictly);
+                for (String zone : zones) {
+                    model.add(zone, zone);
+                }
+            } catch (ClientException e) {
+                log.error("doFillZoneItems error. region: {}", region, e);
             }
             return model;
         }
@@ -755,10 +1145,15 @@ public class AlibabaCloud extends Cloud {
                     region, credentialsId);
                 return model;
             }
-            AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
-            List<VSwitch> vSwitches = client.describeVsws(zone, vpc);
-            for (DescribeVSwitchesResponse.VSwitch vsw : vSwitches) {
-                model.add(vsw.getVSwitchId(), vsw.getVSwitchId());
+            AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
+            try {
+                List<VSwitch> vSwitches = client.cached("describeVsws:" + zone + ":" + vpc,
+                    () -> client.describeVswsStrictly(zone, vpc));
+                for (DescribeVSwitchesResponse.VSwitch vsw : vSwitches) {
+                    model.add(vsw.getVSwitchId(), vsw.getVSwitchId());
+                }
+            } catch (ClientException e) {
+                log.error("doFillVswItems error. region: {} zone: {} vpc: {}", region, zone, vpc, e);
             }
             return model;
         }
@@ -780,14 +1175,19 @@ public class AlibabaCloud extends Cloud {
                     region, credentialsId);
                 return items;
             }
-            AlibabaEcsClient client = new AlibabaEcsClient(credentials, region);
+            AlibabaEcsClient client = AlibabaEcsFactory.getInstance().connect(credentials, region);
             DescribeAvailableResourceRequest resourceRequest = new DescribeAvailableResourceRequest();
             resourceRequest.setZoneId(zone);
             resourceRequest.setCores(2);
             resourceRequest.setMemory(8.0f);
-            List<String> instanceTypes = client.describeInstanceTypes(zone, 2, 8.0f);
-            for (String instanceType : instanceTypes) {
-                items.add(instanceType, instanceType);
+            try {
+                List<String> instanceTypes = client.cached("describeInstanceTypes:" + zone + ":2:8.0",
+                    () -> client.describeInstanceTypesStrictly(zone, 2, 8.0f));
+                for (String instanceType : instanceTypes) {
+                    items.add(instanceType, instanceType);
+                }
+            } catch (ClientException e) {
+                log.error("doFillInstanceTypeItems error. region: {} zone: {}", region, zone, e);
             }
             return items;
         }
@@ -804,21 +1204,56 @@ public class AlibabaCloud extends Cloud {
         return this.templates;
     }
 
-    public AlibabaEcsFollowerTemplate getTemplate(String template) {
-        for (AlibabaEcsFollowerTemplate alibabaEcsFollowerTemplate : templates) {
-            if (alibabaEcsFollowerTemplate.getTemplateId().equals(template)) {
-                return alibabaEcsFollowerTemplate;
+    /**
+     * 除第一个模板(由cloud上的zone、instanceType等字段生成)以外的模板
+     */
+    public List<AlibabaEcsFollowerTemplate> getAdditionalTemplates() {
+        if (templates.size() <= 1) {
+            return Lists.newArrayList();
+        }
+        return Lists.newArrayList(templates.subList(1, templates.size()));
+    }
+
+    @DataBoundSetter
+    public void setAdditionalTemplates(List<AlibabaEcsFollowerTemplate> additionalTemplates) {
+        List<AlibabaEcsFollowerTemplate> latest = Lists.newArrayList();
+        if (!templates.isEmpty()) {
+            latest.add(templates.get(0));
+        }
+        if (null != additionalTemplates) {
+            latest.addAll(additionalTemplates);
+        }
+        // 模板ID由可用区和实例规格组成, 已用于节点、温池标签和启动模板名称, 不能修改, 保存时拒绝重复的模板
+        Set<String> templateIds = Sets.newHashSet();
+        for (AlibabaEcsFollowerTemplate template : latest) {
+            if (!templateIds.add(template.getTemplateId())) {
+                throw new Failure("Duplicate template: zone and instance type must be unique. templateId: "
+                    + template.getTemplateId());
             }
         }
-        return null;
+        for (AlibabaEcsFollowerTemplate template : latest) {
+            template.setParent(this);
+        }
+        templates = latest;
+        templateIndex = new AlibabaEcsTemplateIndex(latest);
+    }
+
+    public AlibabaEcsFollowerTemplate getTemplate(String template) {
+        return templateIndex.get(template);
+    }
+
+    public AlibabaEcsFollowerTemplate getTemplate(Label label) {
+        return templateIndex.get(label);
     }
 
     public AlibabaEcsFollowerTemplate getTemplate() {
-        return getTemplate(CloudHelper.getTemplateId(zone, instanceType));
+        return templates.isEmpty() ? null : templates.get(0);
     }
 
     @Extension
     public static class AlibabaEcsConnectionUpdater extends PeriodicWork {
+        private static final long CHECK_TIMEOUT_SECONDS = 30L;
+
         @Override
         public long getRecurrencePeriod() {
             return TimeUnit.SECONDS.toMillis(60);
@@ -831,21 +1266,33 @@ public class AlibabaCloud extends Cloud {
                 log.warn("no clouds found, AlibabaEcsConnectionUpdater skipped");
                 return;
             }
+            Set<String> cloudNames = Sets.newHashSet();
             for (Cloud cloud : instance.clouds) {
                 if (!(cloud instanceof AlibabaCloud)) {
                     continue;
                 }
                 AlibabaCloud alibabaCloud = (AlibabaCloud)cloud;
-                log.info("Checking Alibaba Cloud Connection on: {}", alibabaCloud.getDisplayName());
-                List<Region> regions = Lists.newArrayList();
-                if (alibabaCloud.connection != null) {
-                    regions = alibabaCloud.connection.describeRegions();
-                }
-                if (CollectionUtils.isEmpty(regions)) {
-                    log.warn("Reconnecting to Alibaba Cloud on: {}", alibabaCloud.getDisplayName());
-                    alibabaCloud.reconnectToAlibabaCloudEcs();
-                }
+                cloudNames.add(alibabaCloud.name);
+                log.info("Checking Alibaba Cloud Connection on: {} {}", alibabaCloud.getDisplayName(),
+                    alibabaCloud.getAsyncClient());
+                // 凭据中的AccessKey可能已经轮换, 相同AccessKey时取回的是同一个client
+                alibabaCloud.reconnectToAlibabaCloudEcs();
+                // 检查结果在回调中处理, 不占用PeriodicWork的线程, 一个cloud的超时也不会推迟其他cloud
+                CompletableFuture<List<Region>> check = alibabaCloud.getAsyncClient().describeRegions();
+                check.whenComplete((regions, e) -> {
+                    if (e != null || CollectionUtils.isEmpty(regions)) {
+                        log.warn("Alibaba Cloud connection check failed on: {}", alibabaCloud.getDisplayName(), e);
+                    }
+                });
+                Timer.get().schedule(() -> {
+                    if (!check.isDone()) {
+                        log.warn("Alibaba Cloud connection check still running after {}s on: {}",
+                            CHECK_TIMEOUT_SECONDS, alibabaCloud.getDisplayName());
+                    }
+                }, CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
             }
+            // 已删除的cloud不再引用client, 空闲后关闭
+            AlibabaEcsClientRegistry.get().retainOwners(cloudNames);
         }
     }
 }
@@ -0,0 +1,137 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import jenkins.model.Jenkins;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * 节点上按内容寻址的启动文件缓存.
+ * <p>
+ * 文件以sha256为目录名保存在节点上, 上传前先在节点上校验同名文件的sha256, 一致时直接复用,
+ * 烘焙镜像或重启后的实例不再重复上传remoting.jar和JDK安装包.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsArtifactCache {
+    public static final String REMOTE_CACHE_DIR = "/var/cache/jenkins-ecs";
+
+    private static volatile Artifact remotingJar;
+
+    /**
+     * 控制器上的文件摘要, key为路径, 文件变化后重新计算
+     */
+    private static final Map<String, LocalFile> LOCAL_FILES = new ConcurrentHashMap<>();
+
+    private static class Artifact {
+        private final byte[] content;
+        private final String sha256;
+
+        private Artifact(byte[] content) {
+            this.content = content;
+            this.sha256 = DigestUtils.sha256Hex(content);
+        }
+    }
+
+    private static class LocalFile {
+        private final long lastModified;
+        private final long length;
+        private final String sha256;
+
+        private LocalFile(long lastModified, long length, String sha256) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final Connection conn;
+    private final SCPClient scp;
+    private final PrintStream logger;
+
+    public AlibabaEcsArtifactCache(Connection conn, SCPClient scp, PrintStream logger) {
+        this.conn = conn;
+        this.scp = scp;
+        this.logger = logger;
+    }
+
+    /**
+     * remoting.jar在控制器运行期间不会变化, 只读取和计算摘要一次
+     */
+    private static Artifact getRemotingJar() throws IOException {
+        Artifact artifact = remotingJar;
+        if (null == artifact) {
+            artifact = new Artifact(Jenkins.get().getJnlpJars("remoting.jar").readFully());
+            remotingJar = artifact;
+        }
+        return artifact;
+    }
+
+    private static String sha256(File file) throws IOException {
+        LocalFile cached = LOCAL_FILES.get(file.getAbsolutePath());
+        if (null != cached && cached.lastModified == file.lastModified() && cached.length == file.length()) {
+            return cached.sha256;
+        }
+        String sha256;
+        try (InputStream in = new FileInputStream(file)) {
+            sha256 = DigestUtils.sha256Hex(in);
+        }
+        LOCAL_FILES.put(file.getAbsolutePath(), new LocalFile(file.lastModified(), file.length(), sha256));
+        return sha256;
+    }
+
+    /**
+     * @return 节点上remoting.jar的路径
+     */
+    public String ensureRemotingJar() throws IOException, InterruptedException {
+        Artifact artifact = getRemotingJar();
+        String remoteDir = REMOTE_CACHE_DIR + "/" + artifact.sha256;
+        String remotePath = remoteDir + "/remoting.jar";
+        if (isCached(remotePath, artifact.sha256)) {
+            return remotePath;
+        }
+        conn.exec("mkdir -p " + remoteDir, logger);
+        scp.put(artifact.content, "remoting.jar", remoteDir);
+        return remotePath;
+    }
+
+    /**
+     * 上传控制器上的JDK安装包(tar.gz)并解压
+     *
+     * @return 节点上的JAVA_HOME
+     */
+    public String ensureJdk(File tarball) throws IOException, InterruptedException {
+        String sha256 = sha256(tarball);
+        String remoteDir = REMOTE_CACHE_DIR + "/" + sha256;
+        String javaHome = remoteDir + "/jdk";
+        if (conn.exec("test -x " + javaHome + "/bin/java", logger) == 0) {
+            return javaHome;
+        }
+        String remotePath = remoteDir + "/jdk.tar.gz";
+        if (!isCached(remotePath, sha256)) {
+            conn.exec("mkdir -p " + remoteDir, logger);
+            scp.put(tarball.getAbsolutePath(), "jdk.tar.gz", remoteDir, "0600");
+        }
+        int exitStatus = conn.exec("mkdir -p " + javaHome + " && tar -xzf " + remotePath + " -C " + javaHome
+            + " --strip-components=1", logger);
+        if (exitStatus != 0) {
+            throw new IOException("extract jdk failed. exitStatus: " + exitStatus);
+        }
+        return javaHome;
+    }
+
+    private boolean isCached(String remotePath, String sha256) throws IOException, InterruptedException {
+        boolean cached = conn.exec("echo '" + sha256 + "  " + remotePath + "' | sha256sum -c --status", logger) == 0;
+        log.info("artifact cache {}. path: {}", cached ? "hit" : "miss", remotePath);
+        return cached;
+    }
+}
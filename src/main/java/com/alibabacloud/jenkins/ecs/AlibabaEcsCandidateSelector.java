@@ -0,0 +1,144 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 为模板的每一批创建请求选择(可用区, 交换机, 实例规格).
+ * <p>
+ * 综合两方面的信息排序: 缓存的DescribeAvailableResource库存视图, 以及每个候选项最近创建实例的成功率和耗时(指数滑动平均).
+ * 有库存、成功率高、耗时短的候选项排在前面, 其余情况保持配置的顺序.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsCandidateSelector {
+    private static final long STOCK_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 滑动平均中最近一次结果的权重
+     */
+    private static final double DECAY = 0.3;
+
+    private final AlibabaEcsFollowerTemplate template;
+    private final Map<String, Score> scores = new ConcurrentHashMap<>();
+
+    /**
+     * key为可用区, value为有库存的实例规格; 为空表示库存未知
+     */
+    private volatile Map<String, Set<String>> stock = Collections.emptyMap();
+    private volatile long stockSyncedAt;
+
+    private static class Score {
+        private double successRate = 1.0;
+        private double latencyMillis = 0;
+
+        private synchronized void record(double success, long latency) {
+            successRate = DECAY * success + (1 - DECAY) * successRate;
+            latencyMillis = DECAY * latency + (1 - DECAY) * latencyMillis;
+        }
+
+        /**
+         * @return [成功率, 平均耗时]
+         */
+        private synchronized double[] get() {
+            return new double[] {successRate, latencyMillis};
+        }
+    }
+
+    public AlibabaEcsCandidateSelector(AlibabaEcsFollowerTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * @return 按优先级排序的候选项
+     */
+    public List<AlibabaEcsProvisionCandidate> rank() {
+        List<AlibabaEcsProvisionCandidate> candidates = template.getCandidates();
+        if (candidates.size() <= 1) {
+            return candidates;
+        }
+        Map<String, Set<String>> currentStock = getStock();
+        // 排序过程中分数可能被并发更新, 先取一份快照
+        Map<String, double[]> currentScores = Maps.newHashMap();
+        for (AlibabaEcsProvisionCandidate candidate : candidates) {
+            currentScores.put(candidate.getKey(), score(candidate).get());
+        }
+        List<AlibabaEcsProvisionCandidate> ranked = Lists.newArrayList(candidates);
+        ranked.sort((a, b) -> {
+            int stockCompare = Boolean.compare(!hasStock(currentStock, a), !hasStock(currentStock, b));
+            if (stockCompare != 0) {
+                return stockCompare;
+            }
+            double[] scoreA = currentScores.get(a.getKey());
+            double[] scoreB = currentScores.get(b.getKey());
+            int successCompare = Double.compare(scoreB[0], scoreA[0]);
+            if (successCompare != 0) {
+                return successCompare;
+            }
+            int latencyCompare = Double.compare(scoreA[1], scoreB[1]);
+            if (latencyCompare != 0) {
+                return latencyCompare;
+            }
+            return Integer.compare(candidates.indexOf(a), candidates.indexOf(b));
+        });
+        return ranked;
+    }
+
+    /**
+     * 记录一次RunInstances的结果
+     *
+     * @param requested 请求创建的实例数
+     * @param created   实际创建的实例数
+     */
+    public void record(AlibabaEcsProvisionCandidate candidate, int requested, int created, long latencyMillis) {
+        score(candidate).record(requested <= 0 ? 1.0 : (double)created / requested, latencyMillis);
+        if (created < requested) {
+            // 库存已不足, 下一批创建前重新查询
+            stockSyncedAt = 0;
+        }
+        log.info("candidate result. templateId: {} candidate: {} requested: {} created: {} latency: {}ms",
+            template.getTemplateId(), candidate, requested, created, latencyMillis);
+    }
+
+    /**
+     * @return 可用区内有库存的实例规格, 库存未知时返回null
+     */
+    public Set<String> getStockTypes(String zone) {
+        return getStock().get(zone);
+    }
+
+    private Score score(AlibabaEcsProvisionCandidate candidate) {
+        return scores.computeIfAbsent(candidate.getKey(), key -> new Score());
+    }
+
+    /**
+     * 可用区不在库存视图中时认为库存未知, 不降低优先级
+     */
+    private boolean hasStock(Map<String, Set<String>> currentStock, AlibabaEcsProvisionCandidate candidate) {
+        Set<String> instanceTypes = currentStock.get(candidate.getZone());
+        return null == instanceTypes || instanceTypes.contains(candidate.getInstanceType());
+    }
+
+    private synchronized Map<String, Set<String>> getStock() {
+        if (System.currentTimeMillis() - stockSyncedAt < STOCK_TTL_MILLIS) {
+            return stock;
+        }
+        AlibabaEcsClient connect = template.getParent().connect();
+        Map<String, Set<String>> latest = connect.describeSpotStock();
+        stockSyncedAt = System.currentTimeMillis();
+        // 查询失败时沿用上一次的库存视图
+        if (!latest.isEmpty()) {
+            stock = latest;
+        }
+        return stock;
+    }
+}
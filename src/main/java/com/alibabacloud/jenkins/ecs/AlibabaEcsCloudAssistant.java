@@ -0,0 +1,196 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsAsyncClient;
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
+import com.alibabacloud.jenkins.ecs.util.UserDataBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import jenkins.util.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 通过云助手启动节点.
+ * <p>
+ * 一批节点共用一个带参数的云助手命令, 命令中不包含secret, 每个实例单独调用InvokeCommand, 以参数传入自己的节点名和secret,
+ * 然后以入站方式连接控制器. 控制器不需要ssh, 实例也不需要公网IP.
+ * 刚创建的实例上云助手可能尚未就绪, 执行失败的实例稍后以新的命令重新执行, 多次失败后释放.
+ * 整个过程不占用线程等待, 轮询由{@link Timer}调度.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsCloudAssistant {
+    private static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(3);
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(40);
+    private static final long COMMAND_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(30);
+    private static final int MAX_INVOCATIONS = 5;
+
+    private final AlibabaEcsFollowerTemplate template;
+
+    public AlibabaEcsCloudAssistant(AlibabaEcsFollowerTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * 在后台执行启动, 不阻塞调用方. ECS调用通过cloud的异步client执行, 等待和轮询由{@link Timer}调度, 不占用线程
+     */
+    public void bootstrapAsync(List<AlibabaEcsSpotFollower> followers) {
+        String commandContent;
+        try {
+            commandContent = buildCommandContent();
+        } catch (Exception e) {
+            log.error("cloud assistant bootstrap error. templateId: {}", template.getTemplateId(), e);
+            return;
+        }
+        new Bootstrap(commandContent, followers).nextRound();
+    }
+
+    private String buildCommandContent() throws AlibabaEcsException {
+        UserDataBuilder script = new UserDataBuilder();
+        if (template.isInitScriptRunByUserData()) {
+            // 等待UserData中的initScript, 温池中在initScript修改前创建的实例没有执行过, 在命令中执行
+            String digest = AlibabaEcsImageBaker.getInitScriptDigest(template.getInitScript());
+            script.line(AlibabaEcsUnixComputerLauncher.getWaitInitScriptCommand(digest))
+                .line("status=$?")
+                .line("if [ $status -eq " + AlibabaEcsUnixComputerLauncher.USER_DATA_INIT_SKIPPED + " ]; then");
+            template.appendInitScript(script, true);
+            script.line("elif [ $status -ne 0 ]; then")
+                .line("  exit 1")
+                .line("fi");
+        } else if (StringUtils.isNotBlank(template.getInitScript())) {
+            template.appendInitScript(script, true);
+        }
+        AlibabaEcsInboundAgent.appendTo(script, template);
+        return script.encode();
+    }
+
+    /**
+     * 一批节点的启动过程: 每一轮创建命令并在待启动的实例上调用, 轮询执行结果, 执行失败的实例进入下一轮.
+     * 同一时间只有一个步骤在执行, 步骤之间由异步client的future和Timer衔接
+     */
+    private class Bootstrap {
+        private final String commandContent;
+        private final String commandName;
+        private final Map<String, AlibabaEcsSpotFollower> pending = new ConcurrentHashMap<>();
+        private final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        private final AlibabaEcsAsyncClient asyncClient = template.getParent().getAsyncClient();
+        private int invocations;
+
+        private Bootstrap(String commandContent, List<AlibabaEcsSpotFollower> followers) {
+            this.commandContent = commandContent;
+            this.commandName = ("jenkins-bootstrap-" + template.getTemplateId()).replaceAll("[^a-zA-Z0-9._-]", "-");
+            for (AlibabaEcsSpotFollower follower : followers) {
+                pending.put(follower.getEcsInstanceId(), follower);
+            }
+        }
+
+        private void nextRound() {
+            if (invocations >= MAX_INVOCATIONS || pending.isEmpty() || System.currentTimeMillis() >= deadline) {
+                finish();
+                return;
+            }
+            invocations++;
+            List<AlibabaEcsSpotFollower> followers = Lists.newArrayList(pending.values());
+            asyncClient.submit("invokeCommand", c -> invoke(c, followers)).whenComplete((invocation, e) -> {
+                if (null != e || null == invocation) {
+                    if (null != e) {
+                        log.error("cloud assistant invoke error. templateId: {}", template.getTemplateId(), e);
+                    }
+                    schedule(this::nextRound, RETRY_MILLIS);
+                    return;
+                }
+                if (invocation.invoked.isEmpty()) {
+                    deleteCommand(invocation.commandId);
+                    schedule(this::nextRound, RETRY_MILLIS);
+                    return;
+                }
+                schedule(() -> poll(invocation), POLL_MILLIS);
+            });
+        }
+
+        /**
+         * 每一轮使用新的命令, 按命令ID查询结果时不会混入上一轮失败的执行
+         *
+         * @return 命令创建失败时返回null
+         */
+        private Invocation invoke(AlibabaEcsClient connect, List<AlibabaEcsSpotFollower> followers) {
+            String commandId = connect.createCommand(commandName, commandContent, COMMAND_TIMEOUT_SECONDS);
+            if (StringUtils.isBlank(commandId)) {
+                return null;
+            }
+            Invocation invocation = new Invocation(commandId);
+            for (AlibabaEcsSpotFollower follower : followers) {
+                if (StringUtils.isNotBlank(connect.invokeCommand(commandId, follower.getEcsInstanceId(),
+                    AlibabaEcsInboundAgent.getParameters(follower)))) {
+                    invocation.invoked.add(follower.getEcsInstanceId());
+                }
+            }
+            return invocation;
+        }
+
+        /**
+         * 查询命令在本轮调用成功的实例上的执行结果, 执行成功的实例从pending中移除. 其余实例没有执行结果, 留到下一轮
+         */
+        private void poll(Invocation invocation) {
+            asyncClient.submit("describeInvocationResults", c -> c.describeInvocationResults(invocation.commandId))
+                .whenComplete((results, e) -> {
+                    boolean running = true;
+                    if (null == e) {
+                        running = false;
+                        for (String instanceId : invocation.invoked) {
+                            AlibabaEcsSpotFollower follower = pending.get(instanceId);
+                            if (null == follower) {
+                                continue;
+                            }
+                            String status = results.get(instanceId);
+                            if ("Finished".equals(status)) {
+                                log.info("cloud assistant bootstrap success. node: {}", follower.getNodeName());
+                                pending.remove(instanceId);
+                            } else if (!"Failed".equals(status) && !"Stopped".equals(status)) {
+                                running = true;
+                            }
+                        }
+                    }
+                    if (running && System.currentTimeMillis() < deadline) {
+                        schedule(() -> poll(invocation), POLL_MILLIS);
+                        return;
+                    }
+                    deleteCommand(invocation.commandId);
+                    schedule(this::nextRound, pending.isEmpty() ? 0L : RETRY_MILLIS);
+                });
+        }
+
+        private void deleteCommand(String commandId) {
+            asyncClient.submit("deleteCommand", c -> c.deleteCommand(commandId));
+        }
+
+        private void finish() {
+            for (AlibabaEcsSpotFollower follower : pending.values()) {
+                log.warn("cloud assistant bootstrap failed, terminating. node: {} instanceId: {}",
+                    follower.getNodeName(), follower.getEcsInstanceId());
+                follower.terminate();
+            }
+        }
+
+        private void schedule(Runnable step, long delayMillis) {
+            Timer.get().schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Invocation {
+        private final String commandId;
+        private final Set<String> invoked = Sets.newHashSet();
+
+        private Invocation(String commandId) {
+            this.commandId = commandId;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
 
 /**
  * Created by kunlun.ykl on 2020/9/11.
@@ -14,6 +15,25 @@ public class AlibabaEcsComputerListener extends ComputerListener {
     public void onOnline(Computer c, TaskListener listener) {
         if (c instanceof AlibabaEcsComputer) {
             ((AlibabaEcsComputer)c).onConnected();
+            updateIndex((AlibabaEcsComputer)c, AlibabaEcsFollowerIndex.State.ONLINE);
         }
     }
+
+    @Override
+    public void onOffline(Computer c, OfflineCause cause) {
+        if (c instanceof AlibabaEcsComputer) {
+            updateIndex((AlibabaEcsComputer)c, AlibabaEcsFollowerIndex.State.LAUNCHING);
+        }
+    }
+
+    private void updateIndex(AlibabaEcsComputer computer, AlibabaEcsFollowerIndex.State state) {
+        AlibabaEcsSpotFollower follower = computer.getNode();
+        AlibabaCloud cloud = computer.getCloud();
+        if (null == follower || null == cloud) {
+            return;
+        }
+        // 上下线前后实例的IP、状态可能已经变化
+        follower.invalidate();
+        cloud.getFollowerIndex().update(follower, state);
+    }
 }
@@ -0,0 +1,120 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * 按模板维护的节点索引, 记录每个节点所处的状态.
+ * <p>
+ * 由{@link AlibabaEcsComputerListener}和{@link AlibabaEcsNodeListener}在节点事件中更新,
+ * 容量检查只需读取计数器, 不再遍历{@code Jenkins.getComputers()}.
+ * </p>
+ */
+public class AlibabaEcsFollowerIndex {
+
+    public enum State {
+        /**
+         * 已准入, 实例创建中, 尚未注册到Jenkins
+         */
+        PENDING,
+        /**
+         * 已注册到Jenkins, 尚未上线
+         */
+        LAUNCHING,
+        ONLINE,
+        TERMINATING
+    }
+
+    private static class Entry {
+        private final String templateId;
+        private final String instanceId;
+        private State state;
+
+        private Entry(String templateId, String instanceId, State state) {
+            this.templateId = templateId;
+            this.instanceId = instanceId;
+            this.state = state;
+        }
+    }
+
+    private final Map<String, Entry> nodes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger[]> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 准入阶段占用pending计数, 此时节点还没有名字
+     */
+    public void reservePending(String templateId, int amount) {
+        counters(templateId)[State.PENDING.ordinal()].addAndGet(amount);
+    }
+
+    public void releasePending(String templateId, int amount) {
+        counters(templateId)[State.PENDING.ordinal()].addAndGet(-amount);
+    }
+
+    public void update(AlibabaEcsSpotFollower follower, State state) {
+        update(follower.getNodeName(), follower.getTemplateId(), follower.getEcsInstanceId(), state);
+    }
+
+    public synchronized void update(String nodeName, String templateId, String instanceId, State state) {
+        Entry entry = nodes.get(nodeName);
+        if (null == entry) {
+            entry = new Entry(templateId, instanceId, state);
+            nodes.put(nodeName, entry);
+            counters(entry.templateId)[state.ordinal()].incrementAndGet();
+            return;
+        }
+        if (entry.state == state) {
+            return;
+        }
+        // 节点一旦进入释放流程, 不会再回到其他状态
+        if (entry.state == State.TERMINATING) {
+            return;
+        }
+        counters(entry.templateId)[entry.state.ordinal()].decrementAndGet();
+        counters(entry.templateId)[state.ordinal()].incrementAndGet();
+        entry.state = state;
+    }
+
+    public synchronized void remove(String nodeName) {
+        Entry entry = nodes.remove(nodeName);
+        if (null != entry) {
+            counters(entry.templateId)[entry.state.ordinal()].decrementAndGet();
+        }
+    }
+
+    public int count(String templateId, State state) {
+        return counters(templateId)[state.ordinal()].get();
+    }
+
+    /**
+     * 模板下仍然占用容量的节点数, 不包括正在释放的节点
+     */
+    public int countAlive(String templateId) {
+        AtomicInteger[] templateCounters = counters(templateId);
+        return templateCounters[State.PENDING.ordinal()].get()
+            + templateCounters[State.LAUNCHING.ordinal()].get()
+            + templateCounters[State.ONLINE.ordinal()].get();
+    }
+
+    public List<String> getInstanceIds() {
+        List<String> instanceIds = Lists.newArrayList();
+        for (Entry entry : nodes.values()) {
+            instanceIds.add(entry.instanceId);
+        }
+        return instanceIds;
+    }
+
+    private AtomicInteger[] counters(String templateId) {
+        return counters.computeIfAbsent(templateId, key -> {
+            AtomicInteger[] templateCounters = new AtomicInteger[State.values().length];
+            for (int i = 0; i < templateCounters.length; i++) {
+                templateCounters[i] = new AtomicInteger();
+            }
+            return templateCounters;
+        });
+    }
+}
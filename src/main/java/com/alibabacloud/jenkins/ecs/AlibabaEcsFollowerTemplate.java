@@ -1,26 +1,40 @@
 package com.alibabacloud.jenkins.ecs;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
 import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
 import com.alibabacloud.jenkins.ecs.util.CloudHelper;
+import com.alibabacloud.jenkins.ecs.util.UserDataBuilder;
+import com.aliyuncs.ecs.model.v20140526.DescribeInstancesResponse.Instance;
 import com.aliyuncs.ecs.model.v20140526.RunInstancesRequest;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import hudson.Extension;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
 import jenkins.model.Jenkins;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * Created by kunlun.ykl on 2020/8/25.
  */
 @Slf4j
 public class AlibabaEcsFollowerTemplate implements Describable<AlibabaEcsFollowerTemplate> {
+    public static final int DEFAULT_SSH_TIMEOUT_SECONDS = 120;
+
     private String templateId;
     private String region;
     private String zone;
@@ -52,8 +66,94 @@ public class AlibabaEcsFollowerTemplate implements Describable<AlibabaEcsFollowe
 
     private int minimumNumberOfInstances;
 
+    /**
+     * 温池中最多保留的停机实例数, 0表示不开启温池, 缩容时直接释放实例
+     */
+    private int warmPoolSize;
+
+    /**
+     * 节点空闲多少分钟后被释放, 0表示不释放
+     */
+    private int idleTerminationMinutes;
+
+    /**
+     * 节点执行多少次任务后被释放, 0表示不限制
+     */
+    private int maxTotalUses;
+
+    /**
+     * 等待节点ssh端口就绪的超时时间, 0表示使用默认值
+     */
+    private int sshTimeoutSeconds;
+
+    /**
+     * 创建实例后开始探测ssh端口前的等待时间, 镜像开机较慢时可以减少无效的探测
+     */
+    private int sshInitialDelaySeconds;
+
+    /**
+     * 主候选项(zone, vswId, instanceType)库存不足或创建失败时, 依次尝试的其他候选项
+     */
+    private List<AlibabaEcsProvisionCandidate> fallbackCandidates;
+
+    /**
+     * 大于0时, 主候选项使用可用区内满足最低vCPU和内存、当前价格最低的实例规格, 而不是固定的instanceType
+     */
+    private int minCpu;
+
+    private float minMemoryGb;
+
+    /**
+     * 抢占式实例每小时的最高出价, 为空时跟随当前市场价格(SpotAsPriceGo)
+     */
+    private Float spotPriceLimit;
+
+    /**
+     * 是否使用入站(JNLP)节点, 实例开机后通过UserData中的脚本主动连接控制器, 不需要ssh
+     */
+    private boolean inboundAgent;
+
+    /**
+     * 是否通过云助手启动入站节点, 不需要ssh和公网IP
+     */
+    private boolean cloudAssistantBootstrap;
+
+    /**
+     * 是否通过UserData在开机时执行initScript, 而不是在ssh连接后执行
+     */
+    private boolean initScriptInUserData;
+
+    /**
+     * 是否通过ECS启动模板创建实例
+     */
+    private boolean useLaunchTemplate;
+
+    /**
+     * 固定使用的启动模板版本, 为空时使用插件根据当前配置生成的最新版本
+     */
+    private Long pinnedLaunchTemplateVersion;
+
+    private String launchTemplateId;
+    private Long launchTemplateVersion;
+
+    /**
+     * 通过{@link AlibabaEcsImageBaker}烘焙的镜像, 为空时使用cloud配置的镜像
+     */
+    private String bakedImageId;
+
+    /**
+     * 生成当前启动模板版本时的配置摘要
+     */
+    private String launchTemplateHash;
+
     private transient AlibabaCloud parent;
 
+    private transient AlibabaEcsWarmPool warmPool;
+
+    private transient AlibabaEcsCandidateSelector candidateSelector;
+
+    private transient Set<LabelAtom> labelSet;
+
     public AlibabaEcsFollowerTemplate(String region, String zone, String instanceType, int minimumNumberOfInstances,
                                       String vsw, String initScript, String labelString, String remoteFs) {
         this.region = region;
@@ -87,12 +187,29 @@ public class AlibabaEcsFollowerTemplate implements Describable<AlibabaEcsFollowe
         }
     }
 
+    /**
+     * 在cloud的"其他模板"中配置的模板, 地域沿用cloud的配置
+     */
+    @DataBoundConstructor
+    public AlibabaEcsFollowerTemplate(String zone, String vswId, String instanceType, int minimumNumberOfInstances,
+                                      String initScript, String labelString, String remoteFs,
+                                      String systemDiskCategory, Integer systemDiskSize, Boolean attachPublicIp) {
+        this(null, zone, instanceType, minimumNumberOfInstances, vswId, initScript, labelString, remoteFs,
+            systemDiskCategory, systemDiskSize, attachPublicIp);
+    }
+
     public AlibabaCloud getParent() {
         return parent;
     }
 
     public void setParent(AlibabaCloud parent) {
         this.parent = parent;
+        if (StringUtils.isBlank(region)) {
+            region = parent.getRegion();
+        }
+        if (StringUtils.isBlank(remoteFs)) {
+            remoteFs = parent.getRemoteFs();
+        }
     }
 
     @Override
@@ -136,41 +253,436 @@ public class AlibabaEcsFollowerTemplate implements Describable<AlibabaEcsFollowe
         return remoteFs;
     }
 
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        this.warmPoolSize = Math.max(0, warmPoolSize);
+    }
+
+    public int getIdleTerminationMinutes() {
+        return idleTerminationMinutes;
+    }
+
+    @DataBoundSetter
+    public void setIdleTerminationMinutes(int idleTerminationMinutes) {
+        this.idleTerminationMinutes = Math.max(0, idleTerminationMinutes);
+    }
+
+    public int getMaxTotalUses() {
+        return maxTotalUses;
+    }
+
+    @DataBoundSetter
+    public void setMaxTotalUses(int maxTotalUses) {
+        this.maxTotalUses = Math.max(0, maxTotalUses);
+    }
+
+    public int getSshTimeoutSeconds() {
+        return sshTimeoutSeconds > 0 ? sshTimeoutSeconds : DEFAULT_SSH_TIMEOUT_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setSshTimeoutSeconds(int sshTimeoutSeconds) {
+        this.sshTimeoutSeconds = Math.max(0, sshTimeoutSeconds);
+    }
+
+    public int getSshInitialDelaySeconds() {
+        return sshInitialDelaySeconds;
+    }
+
+    @DataBoundSetter
+    public void setSshInitialDelaySeconds(int sshInitialDelaySeconds) {
+        this.sshInitialDelaySeconds = Math.max(0, sshInitialDelaySeconds);
+    }
+
+    public List<AlibabaEcsProvisionCandidate> getFallbackCandidates() {
+        return null == fallbackCandidates ? Lists.newArrayList() : fallbackCandidates;
+    }
+
+    @DataBoundSetter
+    public void setFallbackCandidates(List<AlibabaEcsProvisionCandidate> fallbackCandidates) {
+        this.fallbackCandidates = fallbackCandidates;
+    }
+
+    public int getMinCpu() {
+        return minCpu;
+    }
+
+    @DataBoundSetter
+    public void setMinCpu(int minCpu) {
+        this.minCpu = Math.max(0, minCpu);
+    }
+
+    public float getMinMemoryGb() {
+        return minMemoryGb;
+    }
+
+    @DataBoundSetter
+    public void setMinMemoryGb(float minMemoryGb) {
+        this.minMemoryGb = Math.max(0, minMemoryGb);
+    }
+
+    public Float getSpotPriceLimit() {
+        return spotPriceLimit;
+    }
+
+    @DataBoundSetter
+    public void setSpotPriceLimit(Float spotPriceLimit) {
+        this.spotPriceLimit = null != spotPriceLimit && spotPriceLimit > 0 ? spotPriceLimit : null;
+    }
+
+    public String getBakedImageId() {
+        return bakedImageId;
+    }
+
+    @DataBoundSetter
+    public void setBakedImageId(String bakedImageId) {
+        this.bakedImageId = StringUtils.trimToNull(bakedImageId);
+    }
+
+    /**
+     * @return 创建实例使用的镜像, 优先使用烘焙的镜像
+     */
+    public String getImageId() {
+        return StringUtils.isNotBlank(bakedImageId) ? bakedImageId : parent.getImage();
+    }
+
+    public boolean isInboundAgent() {
+        return inboundAgent;
+    }
+
+    @DataBoundSetter
+    public void setInboundAgent(boolean inboundAgent) {
+        this.inboundAgent = inboundAgent;
+    }
+
+    public boolean isCloudAssistantBootstrap() {
+        return cloudAssistantBootstrap;
+    }
+
+    @DataBoundSetter
+    public void setCloudAssistantBootstrap(boolean cloudAssistantBootstrap) {
+        this.cloudAssistantBootstrap = cloudAssistantBootstrap;
+    }
+
+    /**
+     * 是否需要在创建节点后通过云助手启动. 入站节点的secret只能通过云助手按实例传入, 也由云助手启动
+     */
+    public boolean isBootstrappedByCloudAssistant() {
+        return cloudAssistantBootstrap || inboundAgent;
+    }
+
+    /**
+     * initScript是否通过UserData执行, 入站节点总是通过UserData执行
+     */
+    public boolean isInitScriptRunByUserData() {
+        return StringUtils.isNotBlank(initScript) && (initScriptInUserData || inboundAgent);
+    }
+
+    public boolean isInitScriptInUserData() {
+        return initScriptInUserData;
+    }
+
+    @DataBoundSetter
+    public void setInitScriptInUserData(boolean initScriptInUserData) {
+        this.initScriptInUserData = initScriptInUserData;
+    }
+
+    public boolean isUseLaunchTemplate() {
+        return useLaunchTemplate;
+    }
+
+    @DataBoundSetter
+    public void setUseLaunchTemplate(boolean useLaunchTemplate) {
+        this.useLaunchTemplate = useLaunchTemplate;
+    }
+
+    public Long getPinnedLaunchTemplateVersion() {
+        return pinnedLaunchTemplateVersion;
+    }
+
+    @DataBoundSetter
+    public void setPinnedLaunchTemplateVersion(Long pinnedLaunchTemplateVersion) {
+        this.pinnedLaunchTemplateVersion = null != pinnedLaunchTemplateVersion && pinnedLaunchTemplateVersion > 0
+            ? pinnedLaunchTemplateVersion : null;
+    }
+
+    public String getLaunchTemplateId() {
+        return launchTemplateId;
+    }
+
+    public Long getLaunchTemplateVersion() {
+        return launchTemplateVersion;
+    }
+
+    /**
+     * 确保启动模板存在, 且最新版本与当前配置一致
+     *
+     * @return 启动模板是否可用, 不可用时回退到完整的RunInstances请求
+     */
+    private synchronized boolean ensureLaunchTemplate(AlibabaEcsClient connect, String keyPairName) {
+        AlibabaEcsLaunchTemplate launchTemplate = new AlibabaEcsLaunchTemplate(this, keyPairName);
+        String settingsHash = launchTemplate.getSettingsHash();
+        if (StringUtils.isBlank(launchTemplateId)) {
+            // Jenkins配置丢失时, 按名称找回已有的启动模板, 并为当前配置创建新版本
+            launchTemplateId = connect.describeLaunchTemplateId(launchTemplate.getName());
+            launchTemplateHash = null;
+            if (StringUtils.isBlank(launchTemplateId)) {
+                launchTemplateId = launchTemplate.create(connect);
+                if (StringUtils.isBlank(launchTemplateId)) {
+                    return false;
+                }
+                launchTemplateVersion = 1L;
+                launchTemplateHash = settingsHash;
+                saveParent();
+            }
+        }
+        if (!settingsHash.equals(launchTemplateHash)) {
+            Long version = launchTemplate.createVersion(connect, launchTemplateId);
+            if (null == version) {
+                return false;
+            }
+            launchTemplateVersion = version;
+            launchTemplateHash = settingsHash;
+            saveParent();
+        }
+        return true;
+    }
+
+    private void saveParent() {
+        try {
+            Jenkins.get().save();
+        } catch (IOException e) {
+            log.error("save launch template error. templateId: {} launchTemplateId: {}", templateId,
+                launchTemplateId, e);
+        }
+    }
+
+    /**
+     * 配置了最低vCPU或内存时, 从价格缓存中选择最便宜的实例规格, 否则使用配置的instanceType
+     */
+    public String resolveInstanceType() {
+        if (minCpu <= 0 && minMemoryGb <= 0) {
+            return instanceType;
+        }
+        AlibabaEcsSpotPriceCache spotPriceCache = parent.getSpotPriceCache();
+        if (null == spotPriceCache) {
+            return instanceType;
+        }
+        String cheapest = spotPriceCache.cheapestInstanceType(zone, minCpu, minMemoryGb,
+            getCandidateSelector().getStockTypes(zone));
+        return StringUtils.isBlank(cheapest) ? instanceType : cheapest;
+    }
+
+    /**
+     * @return 主候选项在前, 其后是配置的其他候选项
+     */
+    public List<AlibabaEcsProvisionCandidate> getCandidates() {
+        List<AlibabaEcsProvisionCandidate> candidates = Lists.newArrayList(
+            new AlibabaEcsProvisionCandidate(zone, vswId, resolveInstanceType()));
+        candidates.addAll(getFallbackCandidates());
+        return candidates;
+    }
+
+    public synchronized AlibabaEcsCandidateSelector getCandidateSelector() {
+        if (null == candidateSelector) {
+            candidateSelector = new AlibabaEcsCandidateSelector(this);
+        }
+        return candidateSelector;
+    }
+
+    public synchronized AlibabaEcsWarmPool getWarmPool() {
+        if (null == warmPool) {
+            warmPool = new AlibabaEcsWarmPool(this);
+        }
+        return warmPool;
+    }
+
+    public String getSystemDiskCategory() {
+        return systemDiskCategory;
+    }
+
+    public Integer getSystemDiskSize() {
+        return systemDiskSize;
+    }
+
+    public Boolean getAttachPublicIp() {
+        return attachPublicIp;
+    }
+
+    /**
+     * label字符串只在第一次访问时解析
+     */
+    public Set<LabelAtom> getLabelSet() {
+        if (null == labelSet) {
+            labelSet = Label.parse(labelString);
+        }
+        return labelSet;
+    }
+
+    /**
+     * 判断该模板创建的节点能否承接指定label的任务, label为空时表示任意节点均可.
+     */
+    public boolean matches(Label label) {
+        return label == null || label.matches(getLabelSet());
+    }
+
     public List<AlibabaEcsSpotFollower> provision(int amount) throws Exception {
+        return createFollowers(provisionInstances(amount));
+    }
+
+    /**
+     * 优先复用温池中停机的实例, 不足的部分再新建
+     *
+     * @return 实例ID列表
+     */
+    public List<String> provisionInstances(int amount) throws Exception {
+        List<String> instanceIds = Lists.newArrayList(getWarmPool().start(amount));
+        if (instanceIds.size() < amount) {
+            instanceIds.addAll(provisionSpot(amount - instanceIds.size()));
+        }
+        return instanceIds;
+    }
+
+    /**
+     * 批量查询实例信息并构造节点, 避免每个节点单独调用DescribeInstances
+     */
+    public List<AlibabaEcsSpotFollower> createFollowers(List<String> instanceIds) throws Exception {
+        Map<String, Instance> instances = Maps.newHashMap();
+        for (Instance instance : parent.connect().describeInstances(instanceIds)) {
+            instances.put(instance.getInstanceId(), instance);
+        }
         List<AlibabaEcsSpotFollower> list = Lists.newArrayList();
-        List<String> instanceIds = provisionSpot(amount);
         for (String instanceId : instanceIds) {
+            Instance instance = instances.get(instanceId);
+            String name = templateId + "-" + instanceId;
+            ComputerLauncher launcher = new AlibabaEcsUnixComputerLauncher();
+            if (isBootstrappedByCloudAssistant()) {
+                launcher = new JNLPLauncher(true);
+            }
             AlibabaEcsSpotFollower alibabaEcsSpotFollower = new AlibabaEcsSpotFollower(instanceId,
-                templateId + "-" + instanceId,
+                name, launcher,
                 remoteFs,
-                parent.getDisplayName(), labelString, initScript, getTemplateId());
+                parent.getDisplayName(), labelString, initScript, getTemplateId(), instance);
+            alibabaEcsSpotFollower.setRetentionStrategy(
+                new AlibabaEcsRetentionStrategy(idleTerminationMinutes, maxTotalUses));
             list.add(alibabaEcsSpotFollower);
         }
         return list;
     }
 
+    /**
+     * 按{@link AlibabaEcsCandidateSelector}排好的顺序依次创建实例, 一个候选项只创建出部分实例时, 剩余的数量由下一个候选项补齐
+     */
     public List<String> provisionSpot(int amount) throws Exception {
         AlibabaEcsClient connect = getParent().connect();
         if (null == connect) {
             log.error("AlibabaEcsClient  connection failure.");
             throw new AlibabaEcsException("AlibabaEcsClient connect failure.");
         }
-        RunInstancesRequest request = new RunInstancesRequest();
-        request.setVSwitchId(vswId);
-        request.setImageId(parent.getImage());
-        request.setSecurityGroupId(parent.getSecurityGroup());
-        if (null == parent.getPrivateKey()) {
+        // 入站节点不需要ssh, 没有配置密钥对时也可以创建
+        boolean sshRequired = !isBootstrappedByCloudAssistant();
+        if (null == parent.getPrivateKey() && sshRequired) {
             log.error("provision error privateKey is empty.");
             throw new AlibabaEcsException("provision error privateKey is empty.");
         }
-        String keyPairName = parent.getPrivateKey().getKeyPairName();
-        if (StringUtils.isBlank(keyPairName)) {
+        String keyPairName = null == parent.getPrivateKey() ? null : parent.getPrivateKey().getKeyPairName();
+        if (StringUtils.isBlank(keyPairName) && sshRequired) {
             log.error("provision error keyPairName is empty.");
             throw new AlibabaEcsException("provision error keyPairName is empty.");
         }
+        boolean launchTemplateReady = useLaunchTemplate && ensureLaunchTemplate(connect, keyPairName);
+        AlibabaEcsCandidateSelector selector = getCandidateSelector();
+        List<String> instanceIdSets = Lists.newArrayList();
+        for (AlibabaEcsProvisionCandidate candidate : selector.rank()) {
+            int remaining = amount - instanceIdSets.size();
+            if (remaining <= 0) {
+                break;
+            }
+            RunInstancesRequest request = launchTemplateReady ? buildLaunchTemplateRequest(candidate, remaining)
+                : buildRunInstancesRequest(candidate, keyPairName, remaining);
+            // UserData中只有initScript, 入站节点的secret由云助手在实例创建后按实例写入
+            if (isInitScriptRunByUserData()) {
+                UserDataBuilder userData = new UserDataBuilder();
+                appendInitScript(userData);
+                request.setUserData(userData.encode());
+            }
+            long start = System.currentTimeMillis();
+            List<String> created = Lists.newArrayList(connect.runInstances(request));
+            created.removeIf(StringUtils::isBlank);
+            selector.record(candidate, remaining, created.size(), System.currentTimeMillis() - start);
+            instanceIdSets.addAll(created);
+        }
+        if (CollectionUtils.isEmpty(instanceIdSets)) {
+            throw new AlibabaEcsException("provision error");
+        }
+        return instanceIdSets;
+    }
+
+    /**
+     * initScript随开机执行, 结果写入标记文件, 由启动器等待. 烘焙镜像中已执行过相同的脚本时跳过, 执行失败时以非0退出
+     */
+    void appendInitScript(UserDataBuilder userData) {
+        appendInitScript(userData, false);
+    }
+
+    /**
+     * @param encoded 以base64写入initScript, 用于云助手的带参数命令
+     */
+    void appendInitScript(UserDataBuilder userData, boolean encoded) {
+        String digest = AlibabaEcsImageBaker.getInitScriptDigest(initScript);
+        String scriptPath = "/var/lib/jenkins-ecs/init.sh";
+        if (encoded) {
+            userData.encodedFile(scriptPath, initScript, "0700");
+        } else {
+            userData.file(scriptPath, initScript, "0700");
+        }
+        userData
+            .line("if grep -qx " + digest + " " + AlibabaEcsImageBaker.BAKED_MARKER + " 2>/dev/null; then")
+            .line("  echo " + digest + " > " + AlibabaEcsUnixComputerLauncher.INIT_MARKER)
+            .line("elif " + scriptPath + " > /var/log/jenkins-ecs-init.log 2>&1; then")
+            .line("  echo " + digest + " > " + AlibabaEcsUnixComputerLauncher.INIT_MARKER)
+            .line("else")
+            .line("  echo " + digest + " > " + AlibabaEcsUnixComputerLauncher.INIT_FAILED_MARKER)
+            .line("  exit 1")
+            .line("fi");
+    }
+
+    /**
+     * 其余配置来自启动模板, 只需指定随候选项变化的交换机和实例规格
+     */
+    private RunInstancesRequest buildLaunchTemplateRequest(AlibabaEcsProvisionCandidate candidate, int amount) {
+        RunInstancesRequest request = new RunInstancesRequest();
+        request.setLaunchTemplateId(launchTemplateId);
+        request.setLaunchTemplateVersion(null != pinnedLaunchTemplateVersion ? pinnedLaunchTemplateVersion
+            : launchTemplateVersion);
+        request.setVSwitchId(candidate.getVswId());
+        request.setInstanceType(candidate.getInstanceType());
         request.setAmount(amount);
-        request.setKeyPairName(keyPairName);
-        request.setInstanceType(instanceType);
+        request.setMinAmount(1);
+        return request;
+    }
+
+    private RunInstancesRequest buildRunInstancesRequest(AlibabaEcsProvisionCandidate candidate, String keyPairName,
+                                                         int amount) {
+        RunInstancesRequest request = new RunInstancesRequest();
+        request.setVSwitchId(candidate.getVswId());
+        request.setImageId(getImageId());
+        request.setSecurityGroupId(parent.getSecurityGroup());
+        request.setAmount(amount);
+        // 库存不足时允许只创建出部分实例
+        request.setMinAmount(1);
+        if (StringUtils.isNotBlank(keyPairName)) {
+            request.setKeyPairName(keyPairName);
+        }
+        request.setInstanceType(candidate.getInstanceType());
+        if (null != spotPriceLimit) {
+            request.setSpotStrategy("SpotWithPriceLimit");
+            request.setSpotPriceLimit(spotPriceLimit);
+        }
         if(StringUtils.isNotBlank(systemDiskCategory)) {
             request.setSystemDiskCategory(systemDiskCategory);
         }
@@ -181,12 +693,11 @@ public class AlibabaEcsFollowerTemplate implements Describable<AlibabaEcsFollowe
             request.setInternetMaxBandwidthIn(10);
             request.setInternetMaxBandwidthOut(10);
         }
-        List<String> instanceIdSets = connect.runInstances(request);
-        if (CollectionUtils.isEmpty(instanceIdSets)
-            || StringUtils.isBlank(instanceIdSets.get(0))) {
-            throw new AlibabaEcsException("provision error");
-        }
-        return instanceIdSets;
+        RunInstancesRequest.Tag templateTag = new RunInstancesRequest.Tag();
+        templateTag.setKey(AlibabaEcsWarmPool.TEMPLATE_TAG_KEY);
+        templateTag.setValue(AlibabaEcsWarmPool.getTemplateTagValue(this));
+        request.setTags(Lists.newArrayList(templateTag));
+        return request;
     }
 
     @Extension
@@ -0,0 +1,131 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 为模板烘焙预装环境的自定义镜像.
+ * <p>
+ * 创建一个节点并完成正常的启动流程(安装JDK、执行initScript), 写入标记文件后以该实例创建镜像,
+ * 镜像可用后模板改用该镜像. 启动器检测到标记文件时跳过已经执行过的安装步骤, 冷启动基本只剩开机时间.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsImageBaker {
+    /**
+     * 烘焙镜像的标记文件, 内容为烘焙时initScript的摘要
+     */
+    public static final String BAKED_MARKER = "/etc/jenkins-ecs-baked";
+
+    private static final long IMAGE_POLL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long IMAGE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(60);
+
+    private final AlibabaEcsFollowerTemplate template;
+
+    public AlibabaEcsImageBaker(AlibabaEcsFollowerTemplate template) {
+        this.template = template;
+    }
+
+    public static String getInitScriptDigest(String initScript) {
+        return Util.getDigestOf(StringUtils.defaultString(initScript));
+    }
+
+    /**
+     * 在后台执行烘焙, 不阻塞调用方
+     */
+    public void bakeAsync() {
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                bake();
+            } catch (Exception e) {
+                log.error("bake image error. templateId: {}", template.getTemplateId(), e);
+            }
+        });
+    }
+
+    public String bake() throws Exception {
+        AlibabaEcsClient connect = template.getParent().connect();
+        // 直接新建实例, 不使用温池中的旧实例
+        List<AlibabaEcsSpotFollower> followers = template.createFollowers(template.provisionSpot(1));
+        if (followers.isEmpty()) {
+            throw new AlibabaEcsException("bake follower not created. templateId: " + template.getTemplateId());
+        }
+        AlibabaEcsSpotFollower follower = followers.get(0);
+        // 烘焙用的节点不承接任务
+        follower.setLabelString("ecs-bake-" + template.getTemplateId());
+        follower.setMode(Node.Mode.EXCLUSIVE);
+        follower.setRetentionStrategy(RetentionStrategy.NOOP);
+        Jenkins.get().addNode(follower);
+        if (template.isBootstrappedByCloudAssistant()) {
+            new AlibabaEcsCloudAssistant(template).bootstrapAsync(followers);
+        }
+        try {
+            Computer computer = follower.toComputer();
+            if (null == computer) {
+                throw new AlibabaEcsException("computer is null. node: " + follower.getNodeName());
+            }
+            if (computer.isLaunchSupported()) {
+                computer.connect(false).get();
+            } else {
+                computer.waitUntilOnline();
+            }
+            VirtualChannel channel = computer.getChannel();
+            if (!computer.isOnline() || null == channel) {
+                throw new AlibabaEcsException("bake follower launch failed. node: " + follower.getNodeName());
+            }
+            new FilePath(channel, BAKED_MARKER).write(getInitScriptDigest(template.getInitScript()),
+                StandardCharsets.UTF_8.name());
+            computer.disconnect(null).get();
+            // 停机后创建镜像, 保证文件系统一致
+            if (!follower.stop()) {
+                throw new AlibabaEcsException("bake follower stop failed. node: " + follower.getNodeName());
+            }
+            String imageName = "jenkins-" + template.getTemplateId() + "-"
+                + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+            String imageId = connect.createImage(follower.getEcsInstanceId(), imageName.replaceAll("[^a-zA-Z0-9._-]",
+                "-"));
+            if (StringUtils.isBlank(imageId)) {
+                throw new AlibabaEcsException("createImage failed. instanceId: " + follower.getEcsInstanceId());
+            }
+            waitForImage(connect, imageId);
+            // 镜像可用后才出现在配置页面的镜像列表中, 使缓存的列表失效
+            connect.invalidateCached("describeImages");
+            template.setBakedImageId(imageId);
+            Jenkins.get().save();
+            log.info("bake image success. templateId: {} imageId: {}", template.getTemplateId(), imageId);
+            return imageId;
+        } finally {
+            follower.terminate();
+        }
+    }
+
+    private void waitForImage(AlibabaEcsClient connect, String imageId) throws Exception {
+        long deadline = System.currentTimeMillis() + IMAGE_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            String status = connect.describeImageStatus(imageId);
+            if ("Available".equals(status)) {
+                return;
+            }
+            if ("CreateFailed".equals(status) || "UnAvailable".equals(status)) {
+                throw new AlibabaEcsException("image create failed. imageId: " + imageId + " status: " + status);
+            }
+            Thread.sleep(IMAGE_POLL_MILLIS);
+        }
+        throw new AlibabaEcsException("wait image timeout. imageId: " + imageId);
+    }
+}
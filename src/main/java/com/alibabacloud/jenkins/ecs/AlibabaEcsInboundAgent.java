@@ -0,0 +1,85 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Map;
+
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
+import com.alibabacloud.jenkins.ecs.util.UserDataBuilder;
+import com.google.common.collect.Maps;
+import hudson.Util;
+import jenkins.model.Jenkins;
+import jenkins.slaves.JnlpAgentReceiver;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 入站(JNLP)节点的启动脚本.
+ * <p>
+ * 脚本由{@link AlibabaEcsCloudAssistant}在每个实例上分别执行, 节点名和secret通过云助手的命令参数传入,
+ * 每个实例只能拿到自己的secret, UserData和命令内容中都不包含secret. 实例以systemd服务的方式连接控制器,
+ * 配置文件中记录了实例ID, 烘焙镜像中残留的其他实例的配置不会被使用.
+ * </p>
+ */
+public class AlibabaEcsInboundAgent {
+    public static final String PARAM_NODE_PATH = "nodePath";
+    public static final String PARAM_SECRET = "secret";
+    public static final String PARAM_INSTANCE_ID = "instanceId";
+
+    private static final String AGENT_DIR = "/etc/jenkins-agent";
+
+    private static final String INSTANCE_ID_URL = "http://100.100.100.200/latest/meta-data/instance-id";
+
+    private AlibabaEcsInboundAgent() {
+    }
+
+    /**
+     * @return 节点对应的云助手命令参数
+     */
+    public static Map<String, String> getParameters(AlibabaEcsSpotFollower follower) {
+        Map<String, String> parameters = Maps.newHashMap();
+        parameters.put(PARAM_NODE_PATH, Util.rawEncode(follower.getNodeName()));
+        parameters.put(PARAM_SECRET, JnlpAgentReceiver.SLAVE_SECRET.mac(follower.getNodeName()));
+        parameters.put(PARAM_INSTANCE_ID, follower.getEcsInstanceId());
+        return parameters;
+    }
+
+    /**
+     * 写入节点配置并(重新)启动连接控制器的服务, 需要以带参数的云助手命令执行
+     */
+    public static void appendTo(UserDataBuilder script, AlibabaEcsFollowerTemplate template)
+        throws AlibabaEcsException {
+        String rootUrl = Jenkins.get().getRootUrl();
+        if (StringUtils.isBlank(rootUrl)) {
+            throw new AlibabaEcsException("Jenkins URL is not configured");
+        }
+        String workDir = StringUtils.defaultIfBlank(template.getRemoteFs(), "/root");
+        String env = "JENKINS_URL=" + UserDataBuilder.quote(rootUrl) + "\n"
+            + "NODE_PATH='{{" + PARAM_NODE_PATH + "}}'\n"
+            + "SECRET='{{" + PARAM_SECRET + "}}'\n"
+            + "INSTANCE_ID='{{" + PARAM_INSTANCE_ID + "}}'\n"
+            + "WORK_DIR=" + UserDataBuilder.quote(workDir) + "\n";
+        String agentScript = "#!/bin/sh\n"
+            + ". " + AGENT_DIR + "/env || exit 1\n"
+            + "[ \"$INSTANCE_ID\" = \"$(curl -s " + INSTANCE_ID_URL + ")\" ] || exit 1\n"
+            + "command -v java >/dev/null 2>&1 || yum install -y java-1.8.0-openjdk.x86_64\n"
+            + "mkdir -p \"$WORK_DIR\"\n"
+            + "curl -sSf -o \"$WORK_DIR/agent.jar\" \"${JENKINS_URL}jnlpJars/agent.jar\" || exit 1\n"
+            + "exec java -jar \"$WORK_DIR/agent.jar\" -jnlpUrl \"${JENKINS_URL}computer/${NODE_PATH}/slave-agent.jnlp\""
+            + " -secret \"$SECRET\" -workDir \"$WORK_DIR\"\n";
+        String unit = "[Unit]\n"
+            + "Description=Jenkins inbound agent\n"
+            + "After=network-online.target\n"
+            + "Wants=network-online.target\n"
+            + "[Service]\n"
+            + "ExecStart=" + AGENT_DIR + "/agent.sh\n"
+            + "Restart=always\n"
+            + "RestartSec=5\n"
+            + "[Install]\n"
+            + "WantedBy=multi-user.target\n";
+        script
+            .file(AGENT_DIR + "/env", env, "0600")
+            .file(AGENT_DIR + "/agent.sh", agentScript, "0700")
+            .file("/etc/systemd/system/jenkins-agent.service", unit, "0644")
+            .line("systemctl daemon-reload")
+            .line("systemctl enable jenkins-agent.service")
+            .line("systemctl restart jenkins-agent.service");
+    }
+}
@@ -0,0 +1,196 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.aliyuncs.ecs.model.v20140526.DescribeInstancesResponse.Instance;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 每个cloud一个的实例状态同步器.
+ * <p>
+ * 周期性地通过cloud的异步client以每页100个实例ID批量调用DescribeInstances, 同步该cloud下所有节点以及正在被等待的实例的状态,
+ * 状态变化时通知等待方. 调用方通过{@link #awaitStatus(String, Collection)}拿到future阻塞等待,
+ * 不再每个节点每秒轮询一次ECS接口.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsInstanceReconciler {
+    /**
+     * 实例已不存在(已释放)
+     */
+    public static final String STATUS_UNKNOWN = "UNKNOWN";
+
+    /**
+     * 有调用方等待状态变化时, 提前触发一次同步的延迟
+     */
+    private static final long EXPEDITED_DELAY_MILLIS = 2000L;
+
+    private volatile AlibabaCloud cloud;
+    private final Map<String, AlibabaEcsInstanceSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final Set<String> trackedInstanceIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final List<Waiter> waiters = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean reconciling = new AtomicBoolean(false);
+    private final AtomicBoolean expeditedScheduled = new AtomicBoolean(false);
+
+    private static class Waiter {
+        private final String instanceId;
+        private final Collection<String> targetStatuses;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        private Waiter(String instanceId, Collection<String> targetStatuses) {
+            this.instanceId = instanceId;
+            this.targetStatuses = targetStatuses;
+        }
+    }
+
+    public AlibabaEcsInstanceReconciler(AlibabaCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * 保存配置后由新的cloud接管, 见{@link AlibabaCloud#readResolve()}
+     */
+    void rebind(AlibabaCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * 同步不属于任何Jenkins节点的实例, 例如温池中的实例和释放失败的孤儿实例.
+     * 实例释放后仍保留{@link #STATUS_UNKNOWN}状态, 直到调用方{@link #untrack(String)}
+     */
+    public void track(String instanceId) {
+        trackedInstanceIds.add(instanceId);
+    }
+
+    public void untrack(String instanceId) {
+        trackedInstanceIds.remove(instanceId);
+    }
+
+    /**
+     * @return 最近一次同步到的实例状态, 未同步过时返回null
+     */
+    public String getStatus(String instanceId) {
+        AlibabaEcsInstanceSnapshot snapshot = snapshots.get(instanceId);
+        return null == snapshot ? null : snapshot.getStatus();
+    }
+
+    /**
+     * @return 最近一次同步到的实例快照, 未同步过时返回null
+     */
+    public AlibabaEcsInstanceSnapshot getSnapshot(String instanceId) {
+        return snapshots.get(instanceId);
+    }
+
+    /**
+     * 等待实例进入任一目标状态, 释放完成的实例状态为{@link #STATUS_UNKNOWN}
+     */
+    public CompletableFuture<String> awaitStatus(String instanceId, Collection<String> targetStatuses) {
+        Waiter waiter = new Waiter(instanceId, targetStatuses);
+        waiters.add(waiter);
+        waiter.future.whenComplete((status, e) -> waiters.remove(waiter));
+        requestReconcile();
+        return waiter.future;
+    }
+
+    /**
+     * 合并多个等待方的请求, 在短暂延迟后只触发一次同步
+     */
+    public void requestReconcile() {
+        if (!expeditedScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().schedule(() -> {
+            expeditedScheduled.set(false);
+            reconcile();
+        }, EXPEDITED_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 查询通过cloud的异步client执行, 不阻塞调用方; 上一次查询未结束时跳过
+     */
+    public void reconcile() {
+        if (!reconciling.compareAndSet(false, true)) {
+            return;
+        }
+        Set<String> instanceIds = Sets.newLinkedHashSet(cloud.getFollowerIndex().getInstanceIds());
+        instanceIds.addAll(trackedInstanceIds);
+        for (Waiter waiter : waiters) {
+            instanceIds.add(waiter.instanceId);
+        }
+        instanceIds.remove(null);
+        if (instanceIds.isEmpty()) {
+            reconciling.set(false);
+            return;
+        }
+        cloud.getAsyncClient().describeInstances(Lists.newArrayList(instanceIds)).whenComplete((described, e) -> {
+            try {
+                if (null != e) {
+                    // 查询失败时保留上一次的状态, 不能当作实例已释放
+                    log.error("reconcile error. cloud: {} instances: {}", cloud.name, instanceIds.size(), e);
+                    return;
+                }
+                Map<String, Instance> latest = Maps.newHashMap();
+                for (Instance instance : described) {
+                    latest.put(instance.getInstanceId(), instance);
+                }
+                for (String instanceId : instanceIds) {
+                    publish(instanceId, latest.get(instanceId));
+                }
+                // 不再需要同步的实例不保留状态
+                snapshots.keySet().retainAll(instanceIds);
+                log.debug("reconcile finished. cloud: {} instances: {}", cloud.name, instanceIds.size());
+            } finally {
+                reconciling.set(false);
+            }
+        });
+    }
+
+    private void publish(String instanceId, Instance instance) {
+        AlibabaEcsInstanceSnapshot snapshot = null == instance ? AlibabaEcsInstanceSnapshot.released(instanceId)
+            : AlibabaEcsInstanceSnapshot.of(instance);
+        String status = snapshot.getStatus();
+        AlibabaEcsInstanceSnapshot previous = snapshots.put(instanceId, snapshot);
+        if (previous != null && !previous.getStatus().equals(status)) {
+            log.info("instance status changed. instanceId: {} {} -> {}", instanceId, previous.getStatus(), status);
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.instanceId.equals(instanceId) && waiter.targetStatuses.contains(status)) {
+                waiter.future.complete(status);
+            }
+        }
+    }
+
+    @Extension
+    public static class AlibabaEcsInstanceReconcileWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(10);
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (cloud instanceof AlibabaCloud) {
+                    ((AlibabaCloud)cloud).getInstanceReconciler().reconcile();
+                }
+            }
+        }
+    }
+}
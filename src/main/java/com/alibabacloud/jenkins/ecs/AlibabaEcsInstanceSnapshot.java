@@ -0,0 +1,86 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.List;
+
+import com.aliyuncs.ecs.model.v20140526.DescribeInstancesResponse.Instance;
+import org.apache.commons.collections.CollectionUtils;
+
+/**
+ * 某一时刻查询到的实例属性, 不可变.
+ * <p>
+ * 节点的IP、状态等属性优先从快照中读取, 快照超过有效期或被显式失效后才重新查询ECS接口.
+ * </p>
+ */
+public class AlibabaEcsInstanceSnapshot {
+    private final String instanceId;
+    private final String status;
+    private final String instanceType;
+    private final String privateIp;
+    private final String publicIp;
+    private final String keyPairName;
+    private final long syncedAt;
+
+    private AlibabaEcsInstanceSnapshot(String instanceId, String status, String instanceType, String privateIp,
+                                       String publicIp, String keyPairName) {
+        this.instanceId = instanceId;
+        this.status = status;
+        this.instanceType = instanceType;
+        this.privateIp = privateIp;
+        this.publicIp = publicIp;
+        this.keyPairName = keyPairName;
+        this.syncedAt = System.currentTimeMillis();
+    }
+
+    public static AlibabaEcsInstanceSnapshot of(Instance instance) {
+        String privateIp = null;
+        if (null != instance.getVpcAttributes()) {
+            privateIp = first(instance.getVpcAttributes().getPrivateIpAddress());
+        }
+        return new AlibabaEcsInstanceSnapshot(instance.getInstanceId(), instance.getStatus(),
+            instance.getInstanceType(), privateIp, first(instance.getPublicIpAddress()), instance.getKeyPairName());
+    }
+
+    /**
+     * 实例已释放
+     */
+    public static AlibabaEcsInstanceSnapshot released(String instanceId) {
+        return new AlibabaEcsInstanceSnapshot(instanceId, AlibabaEcsInstanceReconciler.STATUS_UNKNOWN, null, null,
+            null, null);
+    }
+
+    private static String first(List<String> values) {
+        return CollectionUtils.isEmpty(values) ? null : values.get(0);
+    }
+
+    public boolean isFresh(long ttlMillis) {
+        return System.currentTimeMillis() - syncedAt < ttlMillis;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getInstanceType() {
+        return instanceType;
+    }
+
+    public String getPrivateIp() {
+        return privateIp;
+    }
+
+    public String getPublicIp() {
+        return publicIp;
+    }
+
+    public String getKeyPairName() {
+        return keyPairName;
+    }
+
+    public long getSyncedAt() {
+        return syncedAt;
+    }
+}
@@ -0,0 +1,102 @@
+package com.alibabacloud.jenkins.ecs;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.aliyuncs.AcsRequest;
+import com.aliyuncs.ecs.model.v20140526.CreateLaunchTemplateRequest;
+import com.aliyuncs.ecs.model.v20140526.CreateLaunchTemplateVersionRequest;
+import hudson.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 由{@link AlibabaEcsFollowerTemplate}的配置生成的ECS启动模板.
+ * <p>
+ * 镜像、安全组、密钥对、系统盘、带宽、出价策略和标签写入启动模板, RunInstances只需要指定启动模板ID和版本,
+ * 以及随候选项变化的交换机和实例规格. 配置变化时创建新的启动模板版本, 所有新实例原子地切换到新版本.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsLaunchTemplate {
+    private static final int BANDWIDTH = 10;
+
+    private final AlibabaEcsFollowerTemplate template;
+    private final String keyPairName;
+
+    public AlibabaEcsLaunchTemplate(AlibabaEcsFollowerTemplate template, String keyPairName) {
+        this.template = template;
+        this.keyPairName = keyPairName;
+    }
+
+    /**
+     * 启动模板名称, 同一地域内唯一
+     */
+    public String getName() {
+        String name = "jenkins-" + template.getParent().getDisplayName() + "-" + template.getTemplateId();
+        return name.replaceAll("[^a-zA-Z0-9._:-]", "-");
+    }
+
+    /**
+     * 启动模板中各项配置的摘要, 摘要变化时需要创建新版本
+     */
+    public String getSettingsHash() {
+        AlibabaCloud parent = template.getParent();
+        String settings = StringUtils.join(new Object[] {template.getImageId(), parent.getSecurityGroup(),
+            parent.getVpc(), keyPairName, template.getSystemDiskCategory(), template.getSystemDiskSize(),
+            template.getAttachPublicIp(), template.getSpotPriceLimit(),
+            AlibabaEcsWarmPool.getTemplateTagValue(template)}, "|");
+        return Util.getDigestOf(settings);
+    }
+
+    /**
+     * @return 启动模板ID, 失败时返回null
+     */
+    public String create(AlibabaEcsClient connect) {
+        CreateLaunchTemplateRequest request = new CreateLaunchTemplateRequest();
+        request.setLaunchTemplateName(getName());
+        putSettings(request);
+        return connect.createLaunchTemplate(request);
+    }
+
+    /**
+     * @return 新版本号, 失败时返回null
+     */
+    public Long createVersion(AlibabaEcsClient connect, String launchTemplateId) {
+        CreateLaunchTemplateVersionRequest request = new CreateLaunchTemplateVersionRequest();
+        request.setLaunchTemplateId(launchTemplateId);
+        putSettings(request);
+        return connect.createLaunchTemplateVersion(request);
+    }
+
+    /**
+     * 创建启动模板和创建版本的配置参数相同, 两个请求类型没有公共的setter, 直接写入请求参数
+     */
+    private void putSettings(AcsRequest<?> request) {
+        AlibabaCloud parent = template.getParent();
+        request.putQueryParameter("VersionDescription", getSettingsHash());
+        request.putQueryParameter("ImageId", template.getImageId());
+        request.putQueryParameter("SecurityGroupId", parent.getSecurityGroup());
+        request.putQueryParameter("VpcId", parent.getVpc());
+        request.putQueryParameter("KeyPairName", keyPairName);
+        request.putQueryParameter("InstanceChargeType", "PostPaid");
+        request.putQueryParameter("IoOptimized", "optimized");
+        if (null != template.getSpotPriceLimit()) {
+            request.putQueryParameter("SpotStrategy", "SpotWithPriceLimit");
+            request.putQueryParameter("SpotPriceLimit", template.getSpotPriceLimit());
+        } else {
+            request.putQueryParameter("SpotStrategy", "SpotAsPriceGo");
+        }
+        if (StringUtils.isNotBlank(template.getSystemDiskCategory())) {
+            request.putQueryParameter("SystemDisk.Category", template.getSystemDiskCategory());
+        }
+        if (null != template.getSystemDiskSize()) {
+            request.putQueryParameter("SystemDisk.Size", template.getSystemDiskSize());
+        }
+        if (BooleanUtils.isTrue(template.getAttachPublicIp())) {
+            request.putQueryParameter("InternetMaxBandwidthIn", BANDWIDTH);
+            request.putQueryParameter("InternetMaxBandwidthOut", BANDWIDTH);
+        }
+        request.putQueryParameter("Tag.1.Key", AlibabaEcsWarmPool.TEMPLATE_TAG_KEY);
+        request.putQueryParameter("Tag.1.Value", AlibabaEcsWarmPool.getTemplateTagValue(template));
+    }
+}
@@ -0,0 +1,35 @@
+package com.alibabacloud.jenkins.ecs;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Node;
+import jenkins.model.NodeListener;
+
+/**
+ * 节点加入和删除时维护{@link AlibabaEcsFollowerIndex}
+ */
+@Extension
+public class AlibabaEcsNodeListener extends NodeListener {
+    @Override
+    protected void onCreated(@Nonnull Node node) {
+        if (node instanceof AlibabaEcsSpotFollower) {
+            AlibabaEcsSpotFollower follower = (AlibabaEcsSpotFollower)node;
+            AlibabaCloud cloud = follower.getCloud();
+            if (null != cloud) {
+                cloud.getFollowerIndex().update(follower, AlibabaEcsFollowerIndex.State.LAUNCHING);
+            }
+        }
+    }
+
+    @Override
+    protected void onDeleted(@Nonnull Node node) {
+        if (node instanceof AlibabaEcsSpotFollower) {
+            AlibabaEcsSpotFollower follower = (AlibabaEcsSpotFollower)node;
+            AlibabaCloud cloud = follower.getCloud();
+            if (null != cloud) {
+                cloud.getFollowerIndex().remove(follower.getNodeName());
+            }
+        }
+    }
+}
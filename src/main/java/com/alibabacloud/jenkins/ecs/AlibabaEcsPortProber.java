@@ -0,0 +1,196 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基于NIO的端口探测.
+ * <p>
+ * 所有待启动节点的端口探测共用一个selector线程, 每次探测只发起非阻塞的TCP连接, 端口可连接后才进行ssh握手.
+ * 连接失败后按指数退避重试, 退避时间有上限, 节点端口就绪后最多延迟一个退避间隔被发现.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsPortProber {
+    private static final long MIN_BACKOFF_MILLIS = 500L;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(4);
+    private static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+    private static final AlibabaEcsPortProber INSTANCE = new AlibabaEcsPortProber();
+
+    /**
+     * 其他线程提交的探测, 由selector线程取出
+     */
+    private final Queue<Probe> submitted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 等待下一次连接的探测, 按下次连接时间排序, 只在selector线程中访问
+     */
+    private final PriorityQueue<Probe> waiting = new PriorityQueue<>(
+        (a, b) -> Long.compare(a.nextAttemptAt, b.nextAttemptAt));
+
+    private Selector selector;
+    private Thread thread;
+
+    public static AlibabaEcsPortProber get() {
+        return INSTANCE;
+    }
+
+    private static class Probe {
+        private final InetSocketAddress address;
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long nextAttemptAt;
+        private long connectTimeoutAt;
+        private long backoffMillis = MIN_BACKOFF_MILLIS;
+        private int attempts;
+
+        private Probe(InetSocketAddress address, long nextAttemptAt, long deadline) {
+            this.address = address;
+            this.nextAttemptAt = nextAttemptAt;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 等待端口可连接
+     *
+     * @param initialDelayMillis 第一次探测前的等待时间
+     * @param timeoutMillis      超时时间, 超时后future以{@link TimeoutException}结束
+     */
+    public CompletableFuture<Void> awaitOpen(String host, int port, long initialDelayMillis, long timeoutMillis) {
+        long now = System.currentTimeMillis();
+        Probe probe = new Probe(InetSocketAddress.createUnresolved(host, port), now + Math.max(0L, initialDelayMillis),
+            now + timeoutMillis);
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            probe.future.completeExceptionally(e);
+            return probe.future;
+        }
+        submitted.add(probe);
+        selector.wakeup();
+        return probe.future;
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+        if (null != thread && thread.isAlive()) {
+            return;
+        }
+        selector = Selector.open();
+        thread = new Thread(this::run, "Alibaba Cloud ECS port prober");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                poll();
+            } catch (Exception e) {
+                log.error("port prober error", e);
+            }
+        }
+    }
+
+    private void poll() throws IOException {
+        Probe probe;
+        while (null != (probe = submitted.poll())) {
+            waiting.add(probe);
+        }
+        long now = System.currentTimeMillis();
+        while (!waiting.isEmpty() && waiting.peek().nextAttemptAt <= now) {
+            connect(waiting.poll(), now);
+        }
+        // 连接超时的探测
+        for (SelectionKey key : selector.keys()) {
+            Probe connecting = (Probe)key.attachment();
+            if (key.isValid() && connecting.connectTimeoutAt <= now) {
+                failed(key, connecting, now);
+            }
+        }
+        long nextWakeup = waiting.isEmpty() ? MAX_BACKOFF_MILLIS : waiting.peek().nextAttemptAt - now;
+        selector.select(Math.max(1L, Math.min(nextWakeup, MIN_BACKOFF_MILLIS)));
+        now = System.currentTimeMillis();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Probe connecting = (Probe)key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable() && ((SocketChannel)key.channel()).finishConnect()) {
+                    key.channel().close();
+                    log.info("port open. address: {} attempts: {}", connecting.address, connecting.attempts);
+                    connecting.future.complete(null);
+                }
+            } catch (IOException e) {
+                failed(key, connecting, now);
+            }
+        }
+    }
+
+    private void connect(Probe probe, long now) {
+        if (probe.future.isDone()) {
+            return;
+        }
+        probe.attempts++;
+        SocketChannel channel = null;
+        try {
+            InetSocketAddress address = new InetSocketAddress(probe.address.getHostString(), probe.address.getPort());
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                channel.close();
+                probe.future.complete(null);
+                return;
+            }
+            probe.connectTimeoutAt = now + CONNECT_TIMEOUT_MILLIS;
+            channel.register(selector, SelectionKey.OP_CONNECT, probe);
+        } catch (IOException | RuntimeException e) {
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // ignore
+                }
+            }
+            retry(probe, now);
+        }
+    }
+
+    private void failed(SelectionKey key, Probe probe, long now) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // ignore
+        }
+        retry(probe, now);
+    }
+
+    private void retry(Probe probe, long now) {
+        if (probe.future.isDone()) {
+            return;
+        }
+        if (now >= probe.deadline) {
+            probe.future.completeExceptionally(new TimeoutException(
+                "port not open. address: " + probe.address + " attempts: " + probe.attempts));
+            return;
+        }
+        probe.nextAttemptAt = Math.min(now + probe.backoffMillis, probe.deadline);
+        probe.backoffMillis = Math.min(probe.backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        waiting.add(probe);
+    }
+}
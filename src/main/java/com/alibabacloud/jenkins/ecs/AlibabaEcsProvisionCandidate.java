@@ -0,0 +1,57 @@
+package com.alibabacloud.jenkins.ecs;
+
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * 创建实例时可选的(可用区, 交换机, 实例规格)组合
+ */
+public class AlibabaEcsProvisionCandidate implements Describable<AlibabaEcsProvisionCandidate> {
+    private final String zone;
+    private final String vswId;
+    private final String instanceType;
+
+    @DataBoundConstructor
+    public AlibabaEcsProvisionCandidate(String zone, String vswId, String instanceType) {
+        this.zone = zone;
+        this.vswId = vswId;
+        this.instanceType = instanceType;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getVswId() {
+        return vswId;
+    }
+
+    public String getInstanceType() {
+        return instanceType;
+    }
+
+    public String getKey() {
+        return zone + "/" + vswId + "/" + instanceType;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+
+    @Override
+    public Descriptor<AlibabaEcsProvisionCandidate> getDescriptor() {
+        return Jenkins.get().getDescriptor(getClass());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<AlibabaEcsProvisionCandidate> {
+        @Override
+        public String getDisplayName() {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsAsyncClient;
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
+import com.google.common.collect.Lists;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 异步的节点创建流水线, 按 准入(count) -> 创建(create) -> 补全实例信息(hydrate) -> 注册(register) -> 启动(launch) 的顺序执行.
+ * <p>
+ * 准入在调用方持有锁的情况下同步完成, 创建和补全实例信息在cloud的{@link AlibabaEcsAsyncClient}中执行,
+ * 注册和启动在流水线的线程池中执行. 调用方立即拿到每个节点的future, future在节点上线后完成.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsProvisionPipeline {
+    private static final int MAX_THREADS = 4;
+
+    interface NodeRegistrar {
+        void addNode(AlibabaEcsSpotFollower follower) throws IOException;
+    }
+
+    private final Executor executor;
+    private final NodeRegistrar registrar;
+
+    public AlibabaEcsProvisionPipeline(String cloudName) {
+        // 注册和启动只占用很短的时间, 排队的请求数由异步client的队列限制
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "AlibabaEcsProvisionPipeline-" + cloudName));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.registrar = follower -> Jenkins.get().addNode(follower);
+    }
+
+    /**
+     * @param executor  执行注册和启动
+     * @param registrar 将节点加入Jenkins
+     */
+    AlibabaEcsProvisionPipeline(Executor executor, NodeRegistrar registrar) {
+        this.executor = executor;
+        this.registrar = registrar;
+    }
+
+    /**
+     * 准入阶段: 在节点索引中占用模板的pending计数并提交后续阶段, 不阻塞调用方
+     *
+     * @return 每个待创建节点对应的future, 节点上线后完成
+     */
+    public List<CompletableFuture<Node>> submit(AlibabaEcsFollowerTemplate template, int amount) {
+        List<CompletableFuture<Node>> futures = Lists.newArrayList();
+        for (int i = 0; i < amount; i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        template.getParent().getFollowerIndex().reservePending(template.getTemplateId(), amount);
+        // 已创建的实例, 之后的阶段失败时需要释放还没有注册为节点的实例, 否则实例会一直运行并计费
+        List<String> created = new CopyOnWriteArrayList<>();
+        // 创建和补全实例信息调用ECS, 在cloud的异步client中执行, 与其他ECS调用共用并发限制
+        AlibabaEcsAsyncClient asyncClient = template.getParent().getAsyncClient();
+        CompletableFuture<List<String>> instances = asyncClient.submit("provisionInstances", c -> {
+            List<String> instanceIds = template.provisionInstances(amount);
+            created.addAll(instanceIds);
+            return instanceIds;
+        });
+        instances
+            .thenCompose(instanceIds -> asyncClient.submit("createFollowers", c -> template.createFollowers(instanceIds)))
+            .whenCompleteAsync((followers, e) -> {
+                if (null != e) {
+                    fail(template, amount, futures, created, e);
+                    return;
+                }
+                finish(template, amount, followers, futures, created);
+            }, executor);
+        return futures;
+    }
+
+    private void finish(AlibabaEcsFollowerTemplate template, int amount, List<AlibabaEcsSpotFollower> followers,
+                        List<CompletableFuture<Node>> futures, List<String> created) {
+        AlibabaEcsFollowerIndex followerIndex = template.getParent().getFollowerIndex();
+        try {
+            // register
+            register(followers, created);
+        } catch (Exception e) {
+            fail(template, amount, futures, created, e);
+            return;
+        }
+        followerIndex.releasePending(template.getTemplateId(), amount);
+        try {
+            if (template.isBootstrappedByCloudAssistant()) {
+                new AlibabaEcsCloudAssistant(template).bootstrapAsync(followers);
+            }
+            // launch
+            for (int i = 0; i < followers.size(); i++) {
+                launch(followers.get(i), futures.get(i));
+            }
+            if (followers.size() < amount) {
+                failAll(futures, followers.size(),
+                    new AlibabaEcsException("provisioned " + followers.size() + " of " + amount + " instances"));
+            }
+        } catch (Exception e) {
+            // 节点已注册, 由回收策略释放; 已完成的future不受影响
+            log.error("provision pipeline error. templateId: {} amount: {}", template.getTemplateId(), amount, e);
+            failAll(futures, 0, e);
+        }
+    }
+
+    /**
+     * @param unregistered 已创建但没有注册为节点的实例, 交给释放队列释放
+     */
+    private void fail(AlibabaEcsFollowerTemplate template, int amount, List<CompletableFuture<Node>> futures,
+                      List<String> unregistered, Throwable e) {
+        Throwable cause = e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+        if (cause instanceof RejectedExecutionException) {
+            log.error("provision request rejected. templateId: {} amount: {}", template.getTemplateId(), amount);
+        } else {
+            log.error("provision pipeline error. templateId: {} amount: {}", template.getTemplateId(), amount, cause);
+        }
+        template.getParent().getFollowerIndex().releasePending(template.getTemplateId(), amount);
+        template.getParent().getTerminationQueue().terminateInstances(Lists.newArrayList(unregistered));
+        failAll(futures, 0, cause);
+    }
+
+    /**
+     * 在一次队列锁内注册所有节点, 避免每加入一个节点都触发一次队列维护
+     *
+     * @param unregistered 注册成功的节点的实例ID从中移除, 中途失败时只剩下没有节点的实例
+     */
+    private void register(List<AlibabaEcsSpotFollower> followers, List<String> unregistered) throws Exception {
+        Queue.withLock((Callable<Void>)() -> {
+            for (AlibabaEcsSpotFollower follower : followers) {
+                registrar.addNode(follower);
+                unregistered.remove(follower.getEcsInstanceId());
+            }
+            return null;
+        });
+        log.info("followers registered. count: {}", followers.size());
+    }
+
+    private void launch(AlibabaEcsSpotFollower follower, CompletableFuture<Node> future) {
+        Computer computer = follower.toComputer();
+        if (null == computer) {
+            future.completeExceptionally(new AlibabaEcsException("computer is null. node: " + follower.getNodeName()));
+            return;
+        }
+        if (!computer.isLaunchSupported()) {
+            // 入站节点由实例开机后自行连接, 不需要等待
+            future.complete(follower);
+            return;
+        }
+        // 等待节点上线可能长达数分钟, 不占用流水线线程
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                computer.connect(false).get();
+                if (!computer.isOnline()) {
+                    throw new AlibabaEcsException("follower launch failed. node: " + follower.getNodeName());
+                }
+                log.info("follower online. node: {}", follower.getNodeName());
+                future.complete(follower);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void failAll(List<CompletableFuture<Node>> futures, int fromIndex, Throwable cause) {
+        for (int i = fromIndex; i < futures.size(); i++) {
+            futures.get(i).completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 节点的回收策略.
+ * <p>
+ * 没有任务在执行的节点空闲超过idleTerminationMinutes后被释放, 但模板下存活的节点数不会低于minimumNumberOfInstances;
+ * 配置了maxTotalUses时, 节点执行完指定次数的任务后不再接收新任务, 空闲后立即释放.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsRetentionStrategy extends RetentionStrategy<AlibabaEcsComputer> implements ExecutorListener {
+    /**
+     * 空闲多少分钟后释放节点, 0表示不释放
+     */
+    private final int idleTerminationMinutes;
+
+    /**
+     * 节点最多执行的任务数, 0表示不限制
+     */
+    private final int maxTotalUses;
+
+    /**
+     * 已执行的任务数, 随节点配置保存, 重启或重新加载配置后不会清零
+     */
+    private int totalUses;
+
+    public AlibabaEcsRetentionStrategy(int idleTerminationMinutes, int maxTotalUses) {
+        this.idleTerminationMinutes = Math.max(0, idleTerminationMinutes);
+        this.maxTotalUses = Math.max(0, maxTotalUses);
+    }
+
+    public int getIdleTerminationMinutes() {
+        return idleTerminationMinutes;
+    }
+
+    public int getMaxTotalUses() {
+        return maxTotalUses;
+    }
+
+    @Override
+    public long check(AlibabaEcsComputer c) {
+        AlibabaEcsSpotFollower follower = c.getNode();
+        if (null == follower || c.isConnecting() || !c.isIdle()) {
+            return 1;
+        }
+        if (follower.isDraining()) {
+            log.info("draining follower idle, terminate. node: {}", follower.getNodeName());
+            follower.terminate();
+            return 1;
+        }
+        if (isUsedUp()) {
+            log.info("follower reached max total uses, terminate. node: {} uses: {}", follower.getNodeName(),
+                totalUses);
+            follower.terminate();
+            return 1;
+        }
+        if (idleTerminationMinutes <= 0) {
+            return 1;
+        }
+        long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+        if (idleMillis < TimeUnit.MINUTES.toMillis(idleTerminationMinutes)) {
+            return 1;
+        }
+        AlibabaEcsFollowerTemplate template = follower.getTemplate();
+        AlibabaCloud cloud = follower.getCloud();
+        if (null == template || null == cloud) {
+            return 1;
+        }
+        // 同一模板的节点串行判断, 避免多个节点同时空闲时一起被释放, 低于最小节点数
+        synchronized (template) {
+            int aliveCount = cloud.getFollowerIndex().countAlive(template.getTemplateId());
+            if (aliveCount <= template.getMinimumNumberOfInstances()) {
+                return 1;
+            }
+            log.info("follower idle timeout, terminate. node: {} idleMinutes: {} aliveCount: {}",
+                follower.getNodeName(), TimeUnit.MILLISECONDS.toMinutes(idleMillis), aliveCount);
+            follower.terminate();
+        }
+        return 1;
+    }
+
+    @Override
+    public void start(AlibabaEcsComputer c) {
+        c.connect(false);
+    }
+
+    @Override
+    public boolean isAcceptingTasks(AlibabaEcsComputer c) {
+        AlibabaEcsSpotFollower follower = c.getNode();
+        // 释放中的节点在实例确认释放前仍然在线, 不能再分配任务
+        if (null != follower && (follower.isDraining() || follower.isTerminating())) {
+            return false;
+        }
+        return !isUsedUp();
+    }
+
+    private synchronized boolean isUsedUp() {
+        return maxTotalUses > 0 && totalUses >= maxTotalUses;
+    }
+
+    @Override
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        synchronized (this) {
+            totalUses++;
+        }
+        Computer computer = executor.getOwner();
+        Node node = computer.getNode();
+        if (null == node) {
+            return;
+        }
+        try {
+            Jenkins.get().updateNode(node);
+        } catch (IOException e) {
+            log.error("save follower error. node: {} uses: {}", node.getNodeName(), totalUses, e);
+        }
+    }
+
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+    }
+
+    @Override
+    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+    }
+}
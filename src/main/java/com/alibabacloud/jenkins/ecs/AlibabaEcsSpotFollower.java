@@ -2,8 +2,13 @@ package com.alibabacloud.jenkins.ecs;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
 import com.alibabacloud.jenkins.ecs.util.CloudHelper;
@@ -19,6 +24,7 @@ import hudson.model.Node;
 import hudson.model.Slave;
 import hudson.slaves.ComputerLauncher;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.json.JSONObject;
 import org.apache.commons.collections.CollectionUtils;
@@ -44,35 +50,64 @@ public class AlibabaEcsSpotFollower extends Slave {
 
     private boolean isConnected = false;
 
+    /**
+     * 实例属性快照的有效期, 超过有效期后下一次读取时重新查询
+     */
+    private static final long SNAPSHOT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+        SystemProperties.getInteger(AlibabaEcsSpotFollower.class.getName() + ".snapshotTtlSeconds", 30));
+
+    private transient volatile AlibabaEcsInstanceSnapshot snapshot;
+
+    /**
+     * 早于该时间的快照视为失效, 见{@link #invalidate()}
+     */
+    private transient volatile long invalidatedAt;
+
+    private transient volatile boolean terminating;
+
+    /**
+     * 收到抢占式实例回收通知后, 节点不再接收新任务
+     */
+    private transient volatile boolean draining;
+
     public AlibabaEcsSpotFollower(@Nonnull String ecsInstanceId, @Nonnull String name, ComputerLauncher launcher,
                                   String remoteFS,
                                   @Nonnull String cloudName, String labelString, String initScript,
                                   @Nonnull String templateId)
         throws IOException, FormException {
+        this(ecsInstanceId, name, launcher, remoteFS, cloudName, labelString, initScript, templateId, null);
+    }
+
+    /**
+     * @param instance 已批量查询到的实例信息, 为空时单独调用describeNode查询
+     */
+    public AlibabaEcsSpotFollower(@Nonnull String ecsInstanceId, @Nonnull String name, ComputerLauncher launcher,
+                                  String remoteFS,
+                                  @Nonnull String cloudName, String labelString, String initScript,
+                                  @Nonnull String templateId, @Nullable DescribeInstancesResponse.Instance instance)
+        throws IOException, FormException {
         super(name, remoteFS, launcher);
         this.ecsInstanceId = ecsInstanceId;
         this.cloudName = cloudName;
         this.initScript = initScript;
         this.templateId = templateId;
         setLabelString(labelString);
-        DescribeInstancesResponse.Instance instance = describeNode();
+        if (null == instance) {
+            instance = describeNode();
+        }
         if (null == instance) {
             log.error("describeNode error. instance is null. ecsInstanceId: " + ecsInstanceId);
             return;
         }
-        instanceType = instance.getInstanceType();
-        status = instance.getStatus();
-        List<String> privateIpAddress = instance.getVpcAttributes().getPrivateIpAddress();
-        if (CollectionUtils.isNotEmpty(privateIpAddress)) {
-            privateIp = privateIpAddress.get(0);
-        } else {
+        snapshot = AlibabaEcsInstanceSnapshot.of(instance);
+        instanceType = snapshot.getInstanceType();
+        status = snapshot.getStatus();
+        privateIp = snapshot.getPrivateIp();
+        if (StringUtils.isBlank(privateIp)) {
             log.error("instance.getPrivateIpAddress is null. ecsInstanceId: " + ecsInstanceId);
         }
-        List<String> publicIpAddress = instance.getPublicIpAddress();
-        if (CollectionUtils.isNotEmpty(publicIpAddress)) {
-            publicIp = publicIpAddress.get(0);
-        }
-        keyPairName = instance.getKeyPairName();
+        publicIp = snapshot.getPublicIp();
+        keyPairName = snapshot.getKeyPairName();
     }
 
     @DataBoundConstructor
@@ -114,6 +149,10 @@ public class AlibabaEcsSpotFollower extends Slave {
             return null;
         }
         AlibabaEcsSpotFollower result = (AlibabaEcsSpotFollower)super.reconfigure(req, form);
+        if (null != result) {
+            // 配置页面中没有回收策略, 沿用原有的策略
+            result.setRetentionStrategy(getRetentionStrategy());
+        }
         return result;
     }
 
@@ -149,13 +188,9 @@ public class AlibabaEcsSpotFollower extends Slave {
         if (StringUtils.isNotBlank(privateIp)) {
             return privateIp;
         }
-        DescribeInstancesResponse.Instance instance = describeNode();
-        if (null == instance) {
-            return privateIp;
-        }
-        List<String> privateIpAddress = instance.getVpcAttributes().getPrivateIpAddress();
-        if (CollectionUtils.isNotEmpty(privateIpAddress)) {
-            privateIp = privateIpAddress.get(0);
+        AlibabaEcsInstanceSnapshot snapshot = getSnapshot();
+        if (null != snapshot && StringUtils.isNotBlank(snapshot.getPrivateIp())) {
+            privateIp = snapshot.getPrivateIp();
         }
         return privateIp;
     }
@@ -164,28 +199,77 @@ public class AlibabaEcsSpotFollower extends Slave {
         if (StringUtils.isNotBlank(publicIp)) {
             return publicIp;
         }
-        DescribeInstancesResponse.Instance instance = describeNode();
-        if (null == instance) {
-            return publicIp;
-        }
-        List<String> publicIpAddress = instance.getPublicIpAddress();
-        if (CollectionUtils.isNotEmpty(publicIpAddress)) {
-            publicIp = publicIpAddress.get(0);
+        AlibabaEcsInstanceSnapshot snapshot = getSnapshot();
+        if (null != snapshot && StringUtils.isNotBlank(snapshot.getPublicIp())) {
+            publicIp = snapshot.getPublicIp();
         }
         return publicIp;
     }
 
+    /**
+     * 读取实例状态, 快照有效期内不调用ECS接口. 刷新失败时返回最后一次查询到的状态,
+     * 只有从未查询成功过或ECS确认实例已释放时才返回UNKNOWN
+     */
     public String status() {
-        try {
-            DescribeInstancesResponse.Instance instance = describeNode();
-            if (null == instance) {
-                return "UNKNOWN";
+        AlibabaEcsInstanceSnapshot snapshot = getSnapshot();
+        return null == snapshot ? "UNKNOWN" : snapshot.getStatus();
+    }
+
+    /**
+     * 取本地快照和{@link AlibabaEcsInstanceReconciler}同步到的快照中较新的一个,
+     * 都已过期或已失效时才单独调用describeNode刷新
+     *
+     * @return 刷新失败时返回最后一次查询到的快照, 从未查询成功过时返回null
+     */
+    public AlibabaEcsInstanceSnapshot getSnapshot() {
+        AlibabaEcsInstanceSnapshot latest = snapshot;
+        AlibabaEcsInstanceReconciler reconciler = getInstanceReconciler();
+        if (null != reconciler) {
+            AlibabaEcsInstanceSnapshot synced = reconciler.getSnapshot(ecsInstanceId);
+            if (null != synced && (null == latest || synced.getSyncedAt() > latest.getSyncedAt())) {
+                latest = synced;
             }
-            return instance.getStatus();
+        }
+        if (null != latest && latest.getSyncedAt() >= invalidatedAt && latest.isFresh(SNAPSHOT_TTL_MILLIS)) {
+            snapshot = latest;
+            return latest;
+        }
+        return refreshSnapshot(latest);
+    }
+
+    private AlibabaEcsInstanceSnapshot refreshSnapshot(@Nullable AlibabaEcsInstanceSnapshot last) {
+        AlibabaCloud cloud = getCloud();
+        if (null == cloud) {
+            return last;
+        }
+        try {
+            List<Instance> instances = cloud.connect().describeInstancesStrictly(Lists.newArrayList(ecsInstanceId));
+            // 查询成功但没有结果才说明实例已释放
+            AlibabaEcsInstanceSnapshot refreshed = CollectionUtils.isEmpty(instances)
+                ? AlibabaEcsInstanceSnapshot.released(ecsInstanceId) : AlibabaEcsInstanceSnapshot.of(instances.get(0));
+            snapshot = refreshed;
+            return refreshed;
         } catch (Exception e) {
-            log.error("describeNode error. instanceId: {}", ecsInstanceId, e);
+            // 查询失败不能当作实例已释放, 沿用最后一次的快照, 下一次读取时重新查询
+            log.warn("refresh snapshot error, use last snapshot. instanceId: {}", ecsInstanceId, e);
+            return last;
         }
-        return "UNKNOWN";
+    }
+
+    /**
+     * @return ECS确认实例已释放
+     */
+    public boolean isReleased() {
+        AlibabaEcsInstanceSnapshot snapshot = getSnapshot();
+        return null != snapshot && AlibabaEcsInstanceReconciler.STATUS_UNKNOWN.equals(snapshot.getStatus());
+    }
+
+    /**
+     * 实例发生状态变化(启停、释放、上下线)后调用, 使已有的快照失效
+     */
+    public void invalidate() {
+        // 保留快照, 刷新失败时仍然可以使用
+        invalidatedAt = System.currentTimeMillis();
     }
 
     public String getInstanceType() {
@@ -213,20 +297,28 @@ public class AlibabaEcsSpotFollower extends Slave {
     }
 
     public boolean stop() {
+        return stop(null);
+    }
+
+    /**
+     * @param stoppedMode 停止模式, 参考{@link AlibabaEcsClient#stopInstances(List, String)}
+     */
+    public boolean stop(String stoppedMode) {
         try {
-            AlibabaEcsClient connect = getCloud().connect();
-            for (int i = 0; i < 60; i++) {
-                String status = status();
-                if ("Running".equalsIgnoreCase(status)) {
-                    connect.stopIntance(ecsInstanceId);
-                } else if ("Stopped".equalsIgnoreCase(status) || "Pending".equalsIgnoreCase(status)) {
-                    return true;
-                } else if ("UNKNOWN".equalsIgnoreCase(status)) {
-                    return false;
-                }
-                // "Stopping"状态, 就多等几次
-                Thread.sleep(1000L);
+            String status = status();
+            if ("Stopped".equalsIgnoreCase(status) || "Pending".equalsIgnoreCase(status)) {
+                return true;
+            } else if ("UNKNOWN".equalsIgnoreCase(status)) {
+                return false;
             }
+            if ("Running".equalsIgnoreCase(status)) {
+                AlibabaEcsClient connect = getCloud().connect();
+                connect.stopInstances(Lists.newArrayList(ecsInstanceId), stoppedMode);
+                invalidate();
+            }
+            // "Stopping"状态, 等待同步器通知
+            status = waitForStatus(Lists.newArrayList("Stopped", "UNKNOWN"), 60, 1000L);
+            return "Stopped".equalsIgnoreCase(status);
         } catch (Exception e) {
             log.error("stop error. instanceId: {}", ecsInstanceId, e);
         }
@@ -235,9 +327,8 @@ public class AlibabaEcsSpotFollower extends Slave {
 
     public String gracefulTerminate() {
         try {
-            String currStatus = status();
-            if(currStatus.equals("UNKNOWN")) {
-                return currStatus;
+            if (isReleased()) {
+                return AlibabaEcsInstanceReconciler.STATUS_UNKNOWN;
             }
             boolean stop = stop();
             if (!stop) {
@@ -248,6 +339,7 @@ public class AlibabaEcsSpotFollower extends Slave {
             waitForStatus(Lists.newArrayList("Pending", "Stopped"), 30, 1000L);
 
             connect.terminateInstance(ecsInstanceId, true);
+            invalidate();
             String status = waitForStatus(Lists.newArrayList("UNKNOWN"), 30, 1000L);
             return status;
         } catch (Exception e) {
@@ -256,51 +348,124 @@ public class AlibabaEcsSpotFollower extends Slave {
         return status();
     }
 
+    /**
+     * 通过{@link AlibabaEcsInstanceReconciler}等待实例进入目标状态, 最多等待retryTimes * sleepMills毫秒
+     */
     public String waitForStatus(List<String> targetStatusList, int retryTimes, long sleepMills) {
-        String status = null;
-        for (int i = 0; i < retryTimes; i++) {
-            status = status();
-            if (targetStatusList.contains(status)) {
-                log.info("waitForStatus success. instanceId: {} targetStatus: {} triedTimes: {}", ecsInstanceId,
-                    targetStatusList, i);
-                break;
-            }
-            try {
-                Thread.sleep(sleepMills);
-            } catch (InterruptedException e) {
-                log.error("waitForStatus error instanceId: {} targetStatus: {} ", ecsInstanceId, e);
-            }
+        AlibabaEcsInstanceReconciler reconciler = getInstanceReconciler();
+        if (null == reconciler) {
+            return status();
         }
-        return status;
+        CompletableFuture<String> future = reconciler.awaitStatus(ecsInstanceId, targetStatusList);
+        try {
+            String status = future.get(retryTimes * sleepMills, TimeUnit.MILLISECONDS);
+            log.info("waitForStatus success. instanceId: {} targetStatus: {}", ecsInstanceId, targetStatusList);
+            return status;
+        } catch (TimeoutException e) {
+            log.warn("waitForStatus timeout. instanceId: {} targetStatus: {}", ecsInstanceId, targetStatusList);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("waitForStatus error instanceId: {} targetStatus: {} ", ecsInstanceId, targetStatusList, e);
+        } catch (ExecutionException e) {
+            log.error("waitForStatus error instanceId: {} targetStatus: {} ", ecsInstanceId, targetStatusList, e);
+        } finally {
+            future.cancel(false);
+        }
+        return status();
+    }
+
+    private AlibabaEcsInstanceReconciler getInstanceReconciler() {
+        AlibabaCloud cloud = getCloud();
+        return null == cloud ? null : cloud.getInstanceReconciler();
     }
 
     public String forceTerminate() {
-        String currStatus = status();
-        if(currStatus.equals("UNKNOWN")) {
-            return currStatus;
+        if (isReleased()) {
+            return AlibabaEcsInstanceReconciler.STATUS_UNKNOWN;
         }
         AlibabaEcsClient connect = getCloud().connect();
         connect.terminateInstance(ecsInstanceId, true);
+        invalidate();
         return waitForStatus(Lists.newArrayList("UNKNOWN"), 180, 1000L);
     }
 
-    public void terminate() {
+    public AlibabaEcsFollowerTemplate getTemplate() {
+        AlibabaCloud cloud = getCloud();
+        return null == cloud ? null : cloud.getTemplate(templateId);
+    }
+
+    /**
+     * 温池未满时, 将实例以节省停机模式停止并放回温池, 而不是释放
+     *
+     * @return 实例是否已放回温池
+     */
+    private boolean recycleToWarmPool() throws IOException {
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        if (null == template) {
+            return false;
+        }
+        AlibabaEcsWarmPool warmPool = template.getWarmPool();
+        if (!warmPool.reserve(ecsInstanceId)) {
+            return false;
+        }
+        Jenkins.get().removeNode(this);
+        if (!stop(AlibabaEcsWarmPool.STOPPED_MODE)) {
+            log.warn("recycle to warm pool failed, fallback to terminate. instanceId: {}", ecsInstanceId);
+            warmPool.cancel(ecsInstanceId);
+            getCloud().getTerminationQueue().enqueue(this);
+            return true;
+        }
+        warmPool.add(ecsInstanceId);
+        return true;
+    }
+
+    /**
+     * 温池未满时停机放回温池, 否则交给{@link AlibabaEcsTerminationQueue}批量释放
+     */
+    public synchronized void terminate() {
+        // 回收策略会周期性地检查节点, 同一节点只发起一次释放
+        if (terminating) {
+            return;
+        }
+        terminating = true;
+        AlibabaCloud cloud = getCloud();
+        if (null == cloud) {
+            log.error("terminate error. cloud not found. node: {} cloudName: {}", getNodeName(), cloudName);
+            return;
+        }
+        cloud.getFollowerIndex().update(this, AlibabaEcsFollowerIndex.State.TERMINATING);
+        AlibabaEcsFollowerTemplate template = getTemplate();
+        // 即将被回收的实例不放回温池
+        if (null == template || template.getWarmPoolSize() <= 0 || draining) {
+            cloud.getTerminationQueue().enqueue(this);
+            return;
+        }
+        // 停机需要等待实例进入Stopped状态, 不阻塞调用方
         Computer.threadPoolForRemoting.submit(() -> {
             try {
-                // String currStatus = gracefulTerminate();
-                String currStatus = forceTerminate();
-                if ("UNKNOWN".equals(currStatus)) {
-                    Jenkins.getInstanceOrNull().removeNode(this);
-                    log.info("delete node: {} success.", getNodeName());
-                } else {
-                    log.info("delete node: {} failed. status: {}", getNodeName(), status);
+                if (recycleToWarmPool()) {
+                    log.info("recycle node: {} to warm pool.", getNodeName());
+                    return;
                 }
+                cloud.getTerminationQueue().enqueue(this);
             } catch (Exception e) {
                 log.error("terminate error intanceId: {}", ecsInstanceId, e);
             }
         });
     }
 
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public boolean isTerminating() {
+        return terminating;
+    }
+
     public boolean onConnected() {
         return isConnected;
     }
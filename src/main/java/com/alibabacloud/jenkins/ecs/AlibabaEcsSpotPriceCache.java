@@ -0,0 +1,204 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.aliyuncs.ecs.model.v20140526.DescribeInstanceTypesResponse.InstanceType;
+import com.google.common.collect.Lists;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 每个cloud一个的抢占式实例价格缓存, 按可用区和实例规格索引.
+ * <p>
+ * 价格来自DescribeSpotPriceHistory, 只缓存被查询过的(可用区, 实例规格), 由后台任务定期刷新,
+ * 长时间没有被查询的价格会被淘汰. 选择实例规格时只读缓存, 缓存中没有的价格视为未知并在后台查询,
+ * 不阻塞保存配置和创建节点.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsSpotPriceCache {
+    private static final long PRICE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long SPEC_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long IDLE_EVICT_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * 满足条件的实例规格中, 最多查询规格最小的前几个的价格
+     */
+    private static final int MAX_PRICED_TYPES = 20;
+
+    private volatile AlibabaCloud cloud;
+
+    /**
+     * key为可用区, value的key为实例规格
+     */
+    private final Map<String, Map<String, Price>> prices = new ConcurrentHashMap<>();
+
+    private volatile List<InstanceType> specs = Lists.newArrayList();
+    private volatile long specsSyncedAt;
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+
+    private static class Price {
+        private volatile Float price;
+        private volatile long syncedAt;
+        private volatile long accessedAt = System.currentTimeMillis();
+    }
+
+    public AlibabaEcsSpotPriceCache(AlibabaCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * 保存配置后由新的cloud接管, 见{@link AlibabaCloud#readResolve()}
+     */
+    void rebind(AlibabaCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * 选择满足最低配置且价格最低的实例规格
+     *
+     * @param stockTypes 可用区内有库存的实例规格, 为空表示库存未知
+     * @return 没有满足条件的实例规格时返回null
+     */
+    public String cheapestInstanceType(String zone, int minCpu, float minMemoryGb,
+                                       @Nullable Collection<String> stockTypes) {
+        List<InstanceType> eligible = Lists.newArrayList();
+        for (InstanceType spec : getSpecs()) {
+            if (null == spec.getCpuCoreCount() || null == spec.getMemorySize()) {
+                continue;
+            }
+            if (spec.getCpuCoreCount() < minCpu || spec.getMemorySize() < minMemoryGb) {
+                continue;
+            }
+            if (null != stockTypes && !stockTypes.contains(spec.getInstanceTypeId())) {
+                continue;
+            }
+            eligible.add(spec);
+        }
+        // 规格越大价格通常越高, 只比较较小的规格, 控制价格查询的次数
+        eligible.sort(Comparator.comparing(InstanceType::getCpuCoreCount)
+            .thenComparing(InstanceType::getMemorySize));
+        String cheapest = null;
+        float cheapestPrice = Float.MAX_VALUE;
+        for (InstanceType spec : eligible.subList(0, Math.min(MAX_PRICED_TYPES, eligible.size()))) {
+            Float price = getPrice(zone, spec.getInstanceTypeId());
+            if (null != price && price < cheapestPrice) {
+                cheapest = spec.getInstanceTypeId();
+                cheapestPrice = price;
+            }
+        }
+        log.info("cheapest instance type. zone: {} minCpu: {} minMemoryGb: {} instanceType: {} price: {}", zone,
+            minCpu, minMemoryGb, cheapest, cheapestPrice);
+        return cheapest;
+    }
+
+    /**
+     * 只读缓存, 不调用ECS接口. 未缓存的价格在后台查询, 之后的调用才能读到
+     *
+     * @return 每小时价格, 未知时返回null
+     */
+    public Float getPrice(String zone, String instanceType) {
+        Price price = prices.computeIfAbsent(zone, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(instanceType, key -> new Price());
+        price.accessedAt = System.currentTimeMillis();
+        if (0 == price.syncedAt) {
+            requestRefresh();
+        }
+        return price.price;
+    }
+
+    /**
+     * 缓存中有未查询过的价格或规格时, 不等下一次定期刷新, 立即在后台刷新一次
+     */
+    private void requestRefresh() {
+        if (!refreshScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                refresh();
+            } finally {
+                refreshScheduled.set(false);
+            }
+        });
+    }
+
+    /**
+     * 刷新过期的规格和价格, 淘汰长时间没有被查询的价格
+     */
+    public void refresh() {
+        refreshSpecs();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, Price>> zoneEntry : prices.entrySet()) {
+            Set<Map.Entry<String, Price>> entries = zoneEntry.getValue().entrySet();
+            entries.removeIf(entry -> now - entry.getValue().accessedAt > IDLE_EVICT_MILLIS);
+            for (Map.Entry<String, Price> entry : entries) {
+                if (now - entry.getValue().syncedAt >= PRICE_TTL_MILLIS) {
+                    refresh(zoneEntry.getKey(), entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void refresh(String zone, String instanceType, Price price) {
+        AlibabaEcsClient connect = cloud.connect();
+        Float latest = connect.describeLatestSpotPrice(zone, instanceType);
+        price.syncedAt = System.currentTimeMillis();
+        // 查询失败时沿用上一次的价格
+        if (null != latest) {
+            price.price = latest;
+        }
+    }
+
+    /**
+     * 只读缓存, 规格为空时在后台查询
+     */
+    private List<InstanceType> getSpecs() {
+        if (specs.isEmpty()) {
+            requestRefresh();
+        }
+        return specs;
+    }
+
+    private synchronized void refreshSpecs() {
+        if (!specs.isEmpty() && System.currentTimeMillis() - specsSyncedAt < SPEC_TTL_MILLIS) {
+            return;
+        }
+        List<InstanceType> latest = cloud.connect().describeInstanceTypeSpecs();
+        specsSyncedAt = System.currentTimeMillis();
+        if (!latest.isEmpty()) {
+            specs = latest;
+        }
+    }
+
+    @Extension
+    public static class AlibabaEcsSpotPriceRefreshWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(5);
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (cloud instanceof AlibabaCloud) {
+                    ((AlibabaCloud)cloud).getSpotPriceCache().refresh();
+                }
+            }
+        }
+    }
+}
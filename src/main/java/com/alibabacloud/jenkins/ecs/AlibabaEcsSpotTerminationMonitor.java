@@ -0,0 +1,137 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.SystemProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 抢占式实例回收通知的检测.
+ * <p>
+ * 周期性地在每个在线节点上执行{@link CheckTask}, 读取实例元数据中的回收时间. 实例即将被回收时(约提前两分钟),
+ * 节点进入排空状态不再接收新任务, 同时立即创建一个替换节点.
+ * </p>
+ */
+@Extension
+@Slf4j
+public class AlibabaEcsSpotTerminationMonitor extends AsyncPeriodicWork {
+    /**
+     * 实例元数据中抢占式实例的回收时间, 实例未被标记回收时返回404
+     */
+    public static final String DEFAULT_METADATA_URL
+        = "http://100.100.100.200/latest/meta-data/instance/spot/termination-time";
+
+    private static final String METADATA_URL = SystemProperties.getString(
+        AlibabaEcsSpotTerminationMonitor.class.getName() + ".metadataUrl", DEFAULT_METADATA_URL);
+
+    private static final long CHECK_TIMEOUT_SECONDS = 5L;
+
+    public AlibabaEcsSpotTerminationMonitor() {
+        super("Alibaba Cloud ECS spot termination monitor");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(15);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        // 先在所有节点上异步发起检查, 再统一收集结果, 一个节点超时不影响其他节点
+        Map<AlibabaEcsComputer, Future<String>> checks = Maps.newLinkedHashMap();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (!(computer instanceof AlibabaEcsComputer)) {
+                continue;
+            }
+            AlibabaEcsSpotFollower follower = ((AlibabaEcsComputer)computer).getNode();
+            VirtualChannel channel = computer.getChannel();
+            if (null == follower || follower.isDraining() || null == channel) {
+                continue;
+            }
+            try {
+                checks.put((AlibabaEcsComputer)computer, channel.callAsync(new CheckTask(METADATA_URL)));
+            } catch (IOException e) {
+                log.warn("spot termination check error. node: {}", computer.getName(), e);
+            }
+        }
+        for (Map.Entry<AlibabaEcsComputer, Future<String>> check : checks.entrySet()) {
+            try {
+                String terminationTime = check.getValue().get(CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (StringUtils.isNotBlank(terminationTime)) {
+                    onTerminationNotice(check.getKey(), terminationTime);
+                }
+            } catch (Exception e) {
+                check.getValue().cancel(true);
+                log.warn("spot termination check error. node: {}", check.getKey().getName(), e);
+            }
+        }
+    }
+
+    private void onTerminationNotice(AlibabaEcsComputer computer, String terminationTime) {
+        AlibabaEcsSpotFollower follower = computer.getNode();
+        AlibabaCloud cloud = computer.getCloud();
+        if (null == follower || null == cloud) {
+            return;
+        }
+        log.warn("spot instance will be reclaimed. node: {} instanceId: {} terminationTime: {}",
+            follower.getNodeName(), follower.getEcsInstanceId(), terminationTime);
+        follower.drain();
+        computer.setAcceptingTasks(false);
+        cloud.getFollowerIndex().update(follower, AlibabaEcsFollowerIndex.State.TERMINATING);
+        AlibabaEcsFollowerTemplate template = follower.getTemplate();
+        if (null == template) {
+            return;
+        }
+        cloud.provisionReplacement(template, 1);
+    }
+
+    /**
+     * 在节点上读取实例元数据, 返回回收时间, 实例未被标记回收时返回null
+     */
+    public static class CheckTask extends MasterToSlaveCallable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+        private static final int TIMEOUT_MILLIS = 2000;
+
+        private final String metadataUrl;
+
+        public CheckTask(String metadataUrl) {
+            this.metadataUrl = metadataUrl;
+        }
+
+        @Override
+        public String call() throws IOException {
+            URLConnection connection = new URL(metadataUrl).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (connection instanceof HttpURLConnection
+                && ((HttpURLConnection)connection).getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            try (InputStream in = connection.getInputStream()) {
+                String content = IOUtils.toString(in, StandardCharsets.UTF_8);
+                return StringUtils.isBlank(content) ? null : content.trim();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+    }
+}
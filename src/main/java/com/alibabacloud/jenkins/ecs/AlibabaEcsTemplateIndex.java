@@ -0,0 +1,101 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 模板列表变化时一次性构建的不可变索引.
+ * <p>
+ * 按label atom索引模板, 每个{@link Label}第一次出现时只需检查与它有共同atom的模板, 结果按Label缓存,
+ * 之后的调度判断不再解析label字符串, 也不再遍历模板列表. 模板列表变化时整体替换为新的索引.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsTemplateIndex {
+    private final List<AlibabaEcsFollowerTemplate> templates;
+    private final Map<String, AlibabaEcsFollowerTemplate> byId = Maps.newHashMap();
+    private final Map<LabelAtom, List<AlibabaEcsFollowerTemplate>> byAtom = Maps.newHashMap();
+
+    /**
+     * 缓存每个Label匹配到的模板, 没有匹配的模板时为空列表
+     */
+    private final Map<Label, List<AlibabaEcsFollowerTemplate>> byLabel = new ConcurrentHashMap<>();
+
+    public AlibabaEcsTemplateIndex(List<AlibabaEcsFollowerTemplate> templates) {
+        this.templates = Collections.unmodifiableList(Lists.newArrayList(templates));
+        for (AlibabaEcsFollowerTemplate template : this.templates) {
+            if (byId.containsKey(template.getTemplateId())) {
+                log.warn("duplicate templateId ignored. templateId: {}", template.getTemplateId());
+                continue;
+            }
+            byId.put(template.getTemplateId(), template);
+            for (LabelAtom atom : template.getLabelSet()) {
+                byAtom.computeIfAbsent(atom, key -> Lists.newArrayList()).add(template);
+            }
+        }
+    }
+
+    public List<AlibabaEcsFollowerTemplate> getTemplates() {
+        return templates;
+    }
+
+    public AlibabaEcsFollowerTemplate get(String templateId) {
+        return byId.get(templateId);
+    }
+
+    /**
+     * @return 第一个能承接该label的模板, 没有时返回null
+     */
+    public AlibabaEcsFollowerTemplate get(Label label) {
+        List<AlibabaEcsFollowerTemplate> matched = match(label);
+        return matched.isEmpty() ? null : matched.get(0);
+    }
+
+    /**
+     * @return 能承接该label的模板, 按配置的顺序排列
+     */
+    public List<AlibabaEcsFollowerTemplate> match(Label label) {
+        if (null == label) {
+            return byId.isEmpty() ? Collections.emptyList() : Collections.singletonList(templates.get(0));
+        }
+        return byLabel.computeIfAbsent(label, this::compute);
+    }
+
+    private List<AlibabaEcsFollowerTemplate> compute(Label label) {
+        Set<AlibabaEcsFollowerTemplate> candidates = Sets.newLinkedHashSet();
+        for (LabelAtom atom : label.listAtoms()) {
+            List<AlibabaEcsFollowerTemplate> templatesWithAtom = byAtom.get(atom);
+            if (null != templatesWithAtom) {
+                candidates.addAll(templatesWithAtom);
+            }
+        }
+        List<AlibabaEcsFollowerTemplate> matched = matches(label, candidates);
+        if (matched.isEmpty()) {
+            // 只包含取反等表达式的label, 可能匹配不含任何相关atom的模板
+            matched = matches(label, byId.values());
+        }
+        // 保持配置的顺序
+        matched.sort((a, b) -> Integer.compare(templates.indexOf(a), templates.indexOf(b)));
+        return Collections.unmodifiableList(matched);
+    }
+
+    private List<AlibabaEcsFollowerTemplate> matches(Label label, Iterable<AlibabaEcsFollowerTemplate> candidates) {
+        List<AlibabaEcsFollowerTemplate> matched = Lists.newArrayList();
+        for (AlibabaEcsFollowerTemplate template : candidates) {
+            if (template.matches(label)) {
+                matched.add(template);
+            }
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,334 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.Lists;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 每个cloud一个的节点释放队列.
+ * <p>
+ * 短时间内提交的释放请求被合并为每批最多100个实例ID的DeleteInstances调用,
+ * 通过{@link AlibabaEcsInstanceReconciler}确认实例已释放后, 在一次队列锁内批量移除Jenkins节点.
+ * 同步器确认已不存在的实例(例如已被回收的抢占式实例)不再调用DeleteInstances; DeleteInstances中任意一个实例不存在时整批失败,
+ * 此时将批次拆分后分别重试, 不影响同一批次中的其他实例.
+ * 整个过程不占用remoting线程. 多次释放失败或未确认释放的节点仍从Jenkins中移除,
+ * 实例ID记录为孤儿实例并定期重试释放, 直到确认实例已释放.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsTerminationQueue {
+    static final int MAX_BATCH_SIZE = 100;
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * 合并释放请求的等待时间
+     */
+    static final long FLUSH_DELAY_MILLIS = 2000L;
+
+    /**
+     * 等待实例释放完成的最长时间
+     */
+    static final long CONFIRM_TIMEOUT_SECONDS = 180L;
+
+    /**
+     * 孤儿实例重试释放的间隔
+     */
+    static final long ORPHAN_RETRY_MINUTES = 10L;
+
+    /**
+     * 实例不存在时DeleteInstances返回的错误码前缀, 例如InvalidInstanceId.NotFound
+     */
+    private static final String INSTANCE_NOT_FOUND_CODE_PREFIX = "InvalidInstanceId";
+
+    interface Scheduler {
+        void schedule(Runnable task, long delay, TimeUnit unit);
+    }
+
+    interface NodeRemover {
+        void removeNodes(List<AlibabaEcsSpotFollower> followers) throws Exception;
+    }
+
+    private volatile AlibabaCloud cloud;
+    private final Scheduler scheduler;
+    private final NodeRemover remover;
+
+    /**
+     * 待调用DeleteInstances的节点, key为实例ID
+     */
+    private final Map<String, AlibabaEcsSpotFollower> pending = new ConcurrentHashMap<>();
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+
+    /**
+     * 已确认释放, 待从Jenkins中移除的节点
+     */
+    private final Map<String, AlibabaEcsSpotFollower> released = new ConcurrentHashMap<>();
+
+    /**
+     * 节点已移除但实例可能仍在运行(计费)的实例ID
+     */
+    private final Set<String> orphaned = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean removalScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean orphanRetryScheduled = new AtomicBoolean(false);
+
+    public AlibabaEcsTerminationQueue(AlibabaCloud cloud) {
+        this(cloud, (task, delay, unit) -> Timer.get().schedule(task, delay, unit),
+            AlibabaEcsTerminationQueue::removeFromJenkins);
+    }
+
+    /**
+     * @param scheduler 执行延迟任务
+     * @param remover   从Jenkins中移除节点
+     */
+    AlibabaEcsTerminationQueue(AlibabaCloud cloud, Scheduler scheduler, NodeRemover remover) {
+        this.cloud = cloud;
+        this.scheduler = scheduler;
+        this.remover = remover;
+    }
+
+    /**
+     * 保存配置后由新的cloud接管, 见{@link AlibabaCloud#readResolve()}
+     */
+    void rebind(AlibabaCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    public void enqueue(AlibabaEcsSpotFollower follower) {
+        pending.put(follower.getEcsInstanceId(), follower);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            flushScheduled.set(false);
+            flush();
+        }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        AlibabaEcsInstanceReconciler reconciler = cloud.getInstanceReconciler();
+        List<AlibabaEcsSpotFollower> followers = Lists.newArrayList();
+        for (String instanceId : Lists.newArrayList(pending.keySet())) {
+            AlibabaEcsSpotFollower follower = pending.remove(instanceId);
+            if (null == follower) {
+                continue;
+            }
+            // 已不存在的实例会使整批DeleteInstances失败, 直接确认已释放
+            if (AlibabaEcsInstanceReconciler.STATUS_UNKNOWN.equals(reconciler.getStatus(instanceId))) {
+                log.info("instance already released. node: {} instanceId: {}", follower.getNodeName(), instanceId);
+                markReleased(follower);
+                continue;
+            }
+            followers.add(follower);
+        }
+        // 各批次并发提交, 并发数由cloud的异步client统一限制
+        for (List<AlibabaEcsSpotFollower> batch : Lists.partition(followers, MAX_BATCH_SIZE)) {
+            delete(Lists.newArrayList(batch));
+        }
+    }
+
+    private void delete(List<AlibabaEcsSpotFollower> batch) {
+        List<String> instanceIds = Lists.newArrayList();
+        for (AlibabaEcsSpotFollower follower : batch) {
+            instanceIds.add(follower.getEcsInstanceId());
+        }
+        cloud.getAsyncClient().deleteInstances(instanceIds, true).whenComplete((ignored, e) -> {
+            if (null == e) {
+                log.info("deleteInstances submitted. cloud: {} count: {}", cloud.name, instanceIds.size());
+                for (AlibabaEcsSpotFollower follower : batch) {
+                    follower.invalidate();
+                    confirm(follower);
+                }
+                return;
+            }
+            if (isInstanceNotFound(e)) {
+                if (batch.size() == 1) {
+                    log.info("instance not found, treat as released. node: {} instanceId: {}",
+                        batch.get(0).getNodeName(), instanceIds.get(0));
+                    markReleased(batch.get(0));
+                    return;
+                }
+                // 拆分后分别重试, 直到找出不存在的实例, 不计入重试次数
+                int middle = batch.size() / 2;
+                delete(Lists.newArrayList(batch.subList(0, middle)));
+                delete(Lists.newArrayList(batch.subList(middle, batch.size())));
+                return;
+            }
+            log.warn("deleteInstances error, retry. cloud: {} count: {}", cloud.name, instanceIds.size(), e);
+            retry(batch);
+        });
+    }
+
+    private static boolean isInstanceNotFound(Throwable e) {
+        Throwable cause = e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+        return cause instanceof ClientException
+            && StringUtils.startsWith(((ClientException)cause).getErrCode(), INSTANCE_NOT_FOUND_CODE_PREFIX);
+    }
+
+    private void markReleased(AlibabaEcsSpotFollower follower) {
+        attempts.remove(follower.getEcsInstanceId());
+        released.put(follower.getEcsInstanceId(), follower);
+        scheduleRemoval();
+    }
+
+    private void retry(List<AlibabaEcsSpotFollower> batch) {
+        for (AlibabaEcsSpotFollower follower : batch) {
+            String instanceId = follower.getEcsInstanceId();
+            int attempt = attempts.merge(instanceId, 1, Integer::sum);
+            if (attempt >= MAX_ATTEMPTS) {
+                attempts.remove(instanceId);
+                abandon(follower);
+                continue;
+            }
+            pending.put(instanceId, follower);
+        }
+        scheduleFlush();
+    }
+
+    private void confirm(AlibabaEcsSpotFollower follower) {
+        CompletableFuture<String> future = cloud.getInstanceReconciler().awaitStatus(follower.getEcsInstanceId(),
+            Lists.newArrayList(AlibabaEcsInstanceReconciler.STATUS_UNKNOWN));
+        future.thenAccept(status -> markReleased(follower));
+        scheduler.schedule(() -> {
+            if (future.cancel(false)) {
+                // 未确认释放时重新调用DeleteInstances, 计入重试次数
+                log.warn("terminate not confirmed in {}s, retry. node: {} instanceId: {}", CONFIRM_TIMEOUT_SECONDS,
+                    follower.getNodeName(), follower.getEcsInstanceId());
+                retry(Lists.newArrayList(follower));
+            }
+        }, CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 放弃释放: 节点从Jenkins中移除, 实例记录为孤儿实例, 之后定期重试释放
+     */
+    private void abandon(AlibabaEcsSpotFollower follower) {
+        String instanceId = follower.getEcsInstanceId();
+        log.error("terminate failed, node removed but instance may still be running. retry every {} minutes. "
+            + "node: {} instanceId: {}", ORPHAN_RETRY_MINUTES, follower.getNodeName(), instanceId);
+        orphaned.add(instanceId);
+        cloud.getInstanceReconciler().track(instanceId);
+        released.put(instanceId, follower);
+        scheduleRemoval();
+        scheduleOrphanRetry();
+    }
+
+    /**
+     * 释放没有对应Jenkins节点的实例, 例如创建后注册节点失败的实例. 这些实例按孤儿实例处理, 定期重试释放直到确认已释放
+     */
+    public void terminateInstances(List<String> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return;
+        }
+        log.warn("terminate instances without node. cloud: {} instanceIds: {}", cloud.name, instanceIds);
+        AlibabaEcsInstanceReconciler reconciler = cloud.getInstanceReconciler();
+        for (String instanceId : instanceIds) {
+            orphaned.add(instanceId);
+            reconciler.track(instanceId);
+        }
+        for (List<String> batch : Lists.partition(instanceIds, MAX_BATCH_SIZE)) {
+            cloud.getAsyncClient().deleteInstances(batch, true);
+        }
+        scheduleOrphanRetry();
+    }
+
+    /**
+     * @return 节点已移除但未确认释放的实例ID
+     */
+    public Set<String> getOrphanedInstanceIds() {
+        return Collections.unmodifiableSet(orphaned);
+    }
+
+    private void scheduleOrphanRetry() {
+        if (!orphanRetryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            orphanRetryScheduled.set(false);
+            retryOrphans();
+        }, ORPHAN_RETRY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void retryOrphans() {
+        AlibabaEcsInstanceReconciler reconciler = cloud.getInstanceReconciler();
+        List<String> instanceIds = Lists.newArrayList();
+        for (String instanceId : Lists.newArrayList(orphaned)) {
+            // 同步器确认已释放后不再跟踪该实例
+            if (AlibabaEcsInstanceReconciler.STATUS_UNKNOWN.equals(reconciler.getStatus(instanceId))) {
+                orphaned.remove(instanceId);
+                reconciler.untrack(instanceId);
+                log.info("orphaned instance released. instanceId: {}", instanceId);
+            } else {
+                instanceIds.add(instanceId);
+            }
+        }
+        if (instanceIds.isEmpty()) {
+            return;
+        }
+        log.warn("retry terminating orphaned instances. cloud: {} instanceIds: {}", cloud.name, instanceIds);
+        for (List<String> batch : Lists.partition(instanceIds, MAX_BATCH_SIZE)) {
+            cloud.getAsyncClient().deleteInstances(batch, true);
+        }
+        scheduleOrphanRetry();
+    }
+
+    private void scheduleRemoval() {
+        if (!removalScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            removalScheduled.set(false);
+            removeReleased();
+        }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在一次队列锁内移除所有已释放的节点
+     */
+    private void removeReleased() {
+        List<AlibabaEcsSpotFollower> followers = Lists.newArrayList();
+        for (String instanceId : Lists.newArrayList(released.keySet())) {
+            AlibabaEcsSpotFollower follower = released.remove(instanceId);
+            if (null != follower) {
+                followers.add(follower);
+            }
+        }
+        if (followers.isEmpty()) {
+            return;
+        }
+        try {
+            remover.removeNodes(followers);
+            log.info("followers removed. cloud: {} count: {}", cloud.name, followers.size());
+        } catch (Exception e) {
+            log.error("remove followers error. cloud: {} count: {}", cloud.name, followers.size(), e);
+        }
+    }
+
+    private static void removeFromJenkins(List<AlibabaEcsSpotFollower> followers) throws Exception {
+        Queue.withLock((Callable<Void>)() -> {
+            for (AlibabaEcsSpotFollower follower : followers) {
+                Jenkins.get().removeNode(follower);
+            }
+            return null;
+        });
+    }
+}
@@ -1,24 +1,21 @@
 package com.alibabacloud.jenkins.ecs;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.alibabacloud.credentials.plugin.auth.AlibabaPrivateKey;
-import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsException;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.Session;
-import hudson.FilePath;
 import hudson.model.TaskListener;
-import hudson.slaves.CommandLauncher;
+import hudson.remoting.Channel;
 import hudson.slaves.SlaveComputer;
+import hudson.util.StreamCopyThread;
 import com.alibabacloud.jenkins.ecs.util.LogHelper;
-import jenkins.model.Jenkins;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -28,6 +25,26 @@ import org.apache.commons.lang.StringUtils;
  */
 @Slf4j
 public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
+    private static final int SSH_PORT = 22;
+    private static final long SSH_RETRY_MILLIS = 1000L;
+
+    /**
+     * initScript执行成功的标记文件, 内容为initScript的摘要, 脚本变化后会重新执行
+     */
+    public static final String INIT_MARKER = "/root/.hudson-run-init";
+
+    /**
+     * 通过UserData执行的initScript失败时的标记文件, 内容为initScript的摘要
+     */
+    public static final String INIT_FAILED_MARKER = "/root/.hudson-run-init.failed";
+
+    private static final long INIT_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(30);
+    private static final int USER_DATA_INIT_FAILED = 2;
+
+    /**
+     * 开机已完成但UserData中没有执行当前的initScript
+     */
+    static final int USER_DATA_INIT_SKIPPED = 3;
 
     @Override
     protected void launchScript(AlibabaEcsComputer computer, TaskListener listener) {
@@ -37,59 +54,80 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
             LogHelper.error(log, listener, "node is null", null);
             throw new IllegalStateException("node is null");
         }
-        String hostIp = node.getPublicIp();
         String remoteFs = node.getRemoteFS();
         String initScript = node.getInitScript();
         PrintStream remoteLogger = listener.getLogger();
-        if (StringUtils.isBlank(hostIp)) {
-            // 优先使用公网IP, 没有的话, 则降级到内网IP.
-            hostIp = node.getPrivateIp();
-            LogHelper.warn(log, listener,
-                "launchScript using privateIp " + hostIp + " publicIp is null. instanceId: " + node.getEcsInstanceId(), null);
-        }
         Connection conn = null;
         try {
             // 1. ssh connect to follower
-            File identityKeyFile = createIdentityKeyFile(listener, computer);
             conn = connectToSsh(computer, listener);
 
             String tmpDir = "/tmp";
             conn.exec("mkdir -p " + tmpDir, remoteLogger);
 
-            // 2. install jdk and scp
-            executeRemote(computer, conn, "java -fullversion", "sudo yum install -y java-1.8.0-openjdk.x86_64",
-                    remoteLogger,
-                    listener);
-            executeRemote(computer, conn, "which scp", "sudo yum install -y openssh-clients", remoteLogger, listener);
+            // initScript通过UserData与开机并行执行, 等待其完成后再安装JDK, 避免争用yum
+            boolean hasInitScript = initScript != null && initScript.trim().length() > 0;
+            String initScriptDigest = AlibabaEcsImageBaker.getInitScriptDigest(initScript);
+            AlibabaEcsFollowerTemplate template = node.getTemplate();
+            if (null != template && template.isInitScriptRunByUserData()) {
+                int exitStatus = waitUserDataInitScript(conn, initScriptDigest, remoteLogger, listener);
+                // 超时(124)等情况下UserData中的initScript可能仍在执行, 不能再通过ssh执行一次
+                if (exitStatus != 0 && exitStatus != USER_DATA_INIT_SKIPPED) {
+                    LogHelper.warn(log, listener, "init script in userData failed or timed out. exitStatus: "
+                            + exitStatus + ", see /var/log/jenkins-ecs-init.log", null);
+                    return;
+                }
+            }
+
+            // 2. install jdk and scp, 使用烘焙镜像时跳过
+            boolean baked = conn.exec("test -e " + AlibabaEcsImageBaker.BAKED_MARKER, remoteLogger) == 0;
+            AlibabaCloud cloud = computer.getCloud();
+            String jdkTarballPath = null == cloud ? null : cloud.getJdkTarballPath();
+            if (baked) {
+                LogHelper.info(log, listener, "baked image detected, skip installing jdk.", null);
+            } else {
+                if (StringUtils.isBlank(jdkTarballPath)) {
+                    executeRemote(computer, conn, "java -fullversion", "sudo yum install -y java-1.8.0-openjdk.x86_64",
+                            remoteLogger,
+                            listener);
+                }
+                executeRemote(computer, conn, "which scp", "sudo yum install -y openssh-clients", remoteLogger,
+                        listener);
+            }
             //executeRemote(computer, conn, "git --version", "sudo yum install -y git", remoteLogger, listener);
 
-            // 3. run initScript
+            // 3. run initScript, 烘焙镜像时已执行过相同的initScript则跳过
             SCPClient scp = conn.createSCPClient();
-            if (initScript != null && initScript.trim().length() > 0
-                    && conn.exec("test -e ~/.hudson-run-init", remoteLogger) != 0) {
-                boolean initScriptSuccess = executeInitScript(listener, initScript, conn, tmpDir, scp);
+            boolean initScriptBaked = baked && conn.exec("grep -qx "
+                    + initScriptDigest + " " + AlibabaEcsImageBaker.BAKED_MARKER,
+                    remoteLogger) == 0;
+            if (hasInitScript && !initScriptBaked
+                    && conn.exec("grep -qx " + initScriptDigest + " " + INIT_MARKER, remoteLogger) != 0) {
+                boolean initScriptSuccess = executeInitScript(listener, initScript, initScriptDigest, conn, tmpDir,
+                        scp);
                 if (!initScriptSuccess) {
                     return;
                 }
             }
 
-            // 3. scp remoting.jar
-            scp.put(Jenkins.get().getJnlpJars("remoting.jar").readFully(), "remoting.jar", tmpDir);
+            // 3. scp remoting.jar和JDK, 节点上已有相同内容时跳过
+            AlibabaEcsArtifactCache artifactCache = new AlibabaEcsArtifactCache(conn, scp, remoteLogger);
+            String remotingJar = artifactCache.ensureRemotingJar();
+            String javaCommand = "java";
+            if (StringUtils.isNotBlank(jdkTarballPath)) {
+                javaCommand = artifactCache.ensureJdk(new File(jdkTarballPath)) + "/bin/java";
+            }
 
             // 4. 启动follower的jenkins进程
             String workDir = StringUtils.isNotBlank(remoteFs) ? remoteFs : tmpDir;
             String launchString
-                    = "java -jar " + tmpDir + "/remoting.jar -workDir " + workDir + " -jar-cache "
+                    = javaCommand + " -jar " + remotingJar + " -workDir " + workDir + " -jar-cache "
                     + workDir + "/remoting/jarCache";
-            String sshClientLaunchString = String.format("ssh -o StrictHostKeyChecking=no -i %s %s@%s -p %d %s",
-                    identityKeyFile.getAbsolutePath(), "root",
-                    hostIp,
-                    22,
-                    launchString);
-            CommandLauncher commandLauncher = new CommandLauncher(sshClientLaunchString, null);
-            commandLauncher.launch(computer, listener);
-        } catch (IOException | InterruptedException | AlibabaEcsException e) {
-            LogHelper.warn(log, listener, "launchScript failed.", null);
+            // 在已建立的ssh连接上启动remoting, 通道直接绑定到session的输入输出流, 通道关闭时再关闭连接
+            startChannel(computer, conn, launchString, listener);
+            conn = null;
+        } catch (IOException | InterruptedException e) {
+            LogHelper.warn(log, listener, "launchScript failed.", e);
         } finally {
             if (null != conn) {
                 conn.close();
@@ -97,7 +135,51 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
         }
     }
 
-    private boolean executeInitScript(TaskListener listener, String initScript,
+    private void startChannel(AlibabaEcsComputer computer, final Connection conn, String launchString,
+                              TaskListener listener) throws IOException, InterruptedException {
+        final Session session = conn.openSession();
+        try {
+            session.execCommand(launchString);
+            new StreamCopyThread("stderr copier for " + computer.getName(), session.getStderr(),
+                    listener.getLogger()).start();
+            computer.setChannel(session.getStdout(), session.getStdin(), listener.getLogger(), new Channel.Listener() {
+                @Override
+                public void onClosed(Channel channel, IOException cause) {
+                    session.close();
+                    conn.close();
+                }
+            });
+        } catch (IOException | InterruptedException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 等待UserData中的initScript执行结束
+     *
+     * @return 0表示执行成功, {@link #USER_DATA_INIT_SKIPPED}表示UserData中没有执行当前的initScript
+     * (例如温池中的实例在initScript修改前创建), 需要通过ssh执行, 其他值表示执行失败或等待超时
+     */
+    private int waitUserDataInitScript(Connection conn, String digest, PrintStream logger, TaskListener listener)
+            throws IOException, InterruptedException {
+        LogHelper.info(log, listener, "waiting for init script in userData.", null);
+        int exitStatus = conn.exec(getWaitInitScriptCommand(digest), logger);
+        LogHelper.info(log, listener, "init script in userData finished. exitStatus: " + exitStatus, null);
+        return exitStatus;
+    }
+
+    /**
+     * 等待UserData中initScript的shell命令, 退出码含义见{@link #waitUserDataInitScript}
+     */
+    static String getWaitInitScriptCommand(String digest) {
+        return "timeout " + INIT_TIMEOUT_SECONDS + " sh -c 'while ! grep -qx " + digest + " " + INIT_MARKER
+                + " 2>/dev/null; do grep -qx " + digest + " " + INIT_FAILED_MARKER + " 2>/dev/null && exit "
+                + USER_DATA_INIT_FAILED + "; [ -e /var/lib/cloud/instance/boot-finished ] && exit "
+                + USER_DATA_INIT_SKIPPED + "; sleep 2; done'";
+    }
+
+    private boolean executeInitScript(TaskListener listener, String initScript, String digest,
                                       Connection conn, String tmpDir, SCPClient scp)
             throws IOException, InterruptedException {
         scp.put(initScript.getBytes("UTF-8"), "init.sh", tmpDir, "0700");
@@ -120,7 +202,7 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
         sess = conn.openSession();
         sess.requestDumbPTY(); // so that the remote side bundles stdout
         // and stderr
-        sess.execCommand("touch ~/.hudson-run-init");
+        sess.execCommand("echo " + digest + " > " + INIT_MARKER);
 
         sess.getStdin().close(); // nothing to write here
         sess.getStderr().close(); // we are not supposed to get anything from stderr
@@ -136,29 +218,45 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
     }
 
     private Connection connectToSsh(AlibabaEcsComputer computer, TaskListener listener)
-            throws IOException {
-        final long timeout = 120 * 1000;
+            throws IOException, InterruptedException {
+        AlibabaEcsSpotFollower follower = computer.getNode();
+        if (null == follower) {
+            throw new IOException("alibabaEcsSpotFollower is null");
+        }
+        AlibabaEcsFollowerTemplate template = follower.getTemplate();
+        long timeout = TimeUnit.SECONDS.toMillis(null == template
+                ? AlibabaEcsFollowerTemplate.DEFAULT_SSH_TIMEOUT_SECONDS : template.getSshTimeoutSeconds());
+        long initialDelay = TimeUnit.SECONDS.toMillis(null == template ? 0 : template.getSshInitialDelaySeconds());
         final long startTime = System.currentTimeMillis();
         while (true) {
-            if (System.currentTimeMillis() - startTime > timeout) {
+            long remaining = startTime + timeout - System.currentTimeMillis();
+            if (remaining <= 0) {
                 throw new IOException("connectToSsh failed. usedTime: " + (System.currentTimeMillis() - startTime));
             }
+            // 优先使用公网IP, 没有的话, 则降级到内网IP.
+            String privateIp = follower.getPrivateIp();
+            String hostIp = follower.getPublicIp();
+            if (StringUtils.isEmpty(hostIp)) {
+                LogHelper.warn(log, listener,
+                    "connectToSsh using privateIp " + privateIp + " publicIp is null. instanceId: " + follower.getEcsInstanceId(), null);
+                hostIp = privateIp;
+            }
+            if (StringUtils.isEmpty(hostIp)) {
+                LogHelper.info(log, listener, "instance ip not assigned yet. retry.", null);
+                Thread.sleep(SSH_RETRY_MILLIS);
+                continue;
+            }
+            // 端口可连接后才进行ssh握手
+            try {
+                AlibabaEcsPortProber.get().awaitOpen(hostIp, SSH_PORT, initialDelay, remaining).get();
+            } catch (ExecutionException e) {
+                throw new IOException("connectToSsh failed. usedTime: " + (System.currentTimeMillis() - startTime),
+                        e.getCause());
+            }
+            initialDelay = 0;
             try {
                 LogHelper.info(log, listener, "try to connect to ssh.", null);
-                AlibabaEcsSpotFollower follower = computer.getNode();
-                if (null == follower) {
-                    throw new AlibabaEcsException("alibabaEcsSpotFollower is null");
-                }
-
-                // 优先使用公网IP, 没有的话, 则降级到内网IP.
-                String privateIp = follower.getPrivateIp();
-                String hostIp = follower.getPublicIp();
-                if (StringUtils.isEmpty(hostIp)) {
-                    LogHelper.warn(log, listener,
-                        "connectToSsh using privateIp " + privateIp + " publicIp is null. instanceId: " + follower.getEcsInstanceId(), null);
-                    hostIp = privateIp;
-                }
-                Connection conn = new Connection(hostIp, 22);
+                Connection conn = new Connection(hostIp, SSH_PORT);
                 conn.connect(new ServerHostKeyVerifierImpl(computer, listener), 10000, 10000);
                 boolean b = false;
                 AlibabaCloud alibabaCloud = computer.getCloud();
@@ -172,6 +270,7 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
                 }
 
                 if (!b) {
+                    conn.close();
                     LogHelper.info(log, listener, "ssh auth failed. retry.", null);
                 } else {
                     LogHelper.info(log, listener,
@@ -181,46 +280,8 @@ public class AlibabaEcsUnixComputerLauncher extends AlibabaEcsComputerLauncher {
             } catch (Exception e) {
                 LogHelper.error(log, listener, "connectToSsh error.", e);
             }
-            try {
-                Thread.sleep(5000L);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private File createIdentityKeyFile(TaskListener listener, AlibabaEcsComputer computer) throws IOException, AlibabaEcsException {
-        AlibabaCloud cloud = computer.getCloud();
-        if (null == cloud) {
-            throw new AlibabaEcsException("cloud is null");
-        }
-        AlibabaPrivateKey tempKey = cloud.resolvePrivateKey();
-        if (null == tempKey) {
-            throw new AlibabaEcsException("AlibabaPrivateKey is null");
-        }
-
-        String privateKey = tempKey.getPrivateKey();
-
-        File tempFile = File.createTempFile("ecs_", ".pem");
-        try {
-            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
-            OutputStreamWriter writer = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
-            try {
-                writer.write(privateKey);
-                writer.flush();
-            } finally {
-                writer.close();
-                fileOutputStream.close();
-            }
-            FilePath filePath = new FilePath(tempFile);
-            filePath.chmod(0400); // octal file mask - readonly by owner
-            return tempFile;
-        } catch (Exception e) {
-            LogHelper.error(log, listener, "Failed to create identity key file " + tempFile.getName(), e);
-            if (!tempFile.delete()) {
-                LogHelper.error(log, listener, "Failed to delete identity key file " + tempFile.getName(), e);
-            }
-            throw new IOException("Error creating temporary identity key file for connecting to ECS agent.", e);
+            // 端口已可连接但sshd尚未完成启动, 短暂等待后重试
+            Thread.sleep(SSH_RETRY_MILLIS);
         }
     }
 
@@ -0,0 +1,175 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.aliyuncs.ecs.model.v20140526.DescribeInstancesResponse.Instance;
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 模板级别的温池, 缓存处于节省停机(StopCharging)状态的实例.
+ * <p>
+ * 缩容时节点被停机并放回温池, 而不是直接释放; 扩容时优先通过StartInstances批量启动温池中的实例,
+ * 这些实例已经完成过JDK安装和initScript, 可以跳过冷启动的大部分耗时.
+ * 温池中的实例不属于任何Jenkins节点, 由{@link AlibabaEcsInstanceReconciler}跟踪状态, 已被释放的实例不会被取出.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsWarmPool {
+    public static final String STOPPED_MODE = "StopCharging";
+    public static final String TEMPLATE_TAG_KEY = "JenkinsFollowerTemplate";
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final AlibabaEcsFollowerTemplate template;
+
+    /**
+     * 已停机, 可以被重新启动的实例
+     */
+    private final Set<String> stoppedInstanceIds = new LinkedHashSet<>();
+
+    /**
+     * 已预留位置, 正在停机中的实例
+     */
+    private final Set<String> stoppingInstanceIds = new LinkedHashSet<>();
+
+    private boolean loaded = false;
+
+    public AlibabaEcsWarmPool(AlibabaEcsFollowerTemplate template) {
+        this.template = template;
+    }
+
+    public static String getTemplateTagValue(AlibabaEcsFollowerTemplate template) {
+        return template.getParent().getDisplayName() + "/" + template.getTemplateId();
+    }
+
+    /**
+     * 从温池中取出最多amount个实例并批量启动
+     *
+     * @return 成功发起启动的实例ID, 不包括启动失败的实例
+     */
+    public List<String> start(int amount) {
+        List<String> instanceIds = take(amount);
+        if (instanceIds.isEmpty()) {
+            return instanceIds;
+        }
+        AlibabaEcsClient connect = template.getParent().connect();
+        List<String> started = Lists.newArrayList();
+        for (List<String> batch : Lists.partition(instanceIds, MAX_BATCH_SIZE)) {
+            List<String> batchStarted = connect.startInstances(batch);
+            started.addAll(batchStarted);
+            List<String> failed = Lists.newArrayList(batch);
+            failed.removeAll(batchStarted);
+            if (!failed.isEmpty()) {
+                // 启动失败的实例放回温池, 已被释放的实例下次取出时由reconciler的状态跳过, 缺少的节点由新建实例补齐
+                log.warn("warm pool start failed, put back. templateId: {} instanceIds: {}",
+                    template.getTemplateId(), failed);
+                putBack(failed);
+            }
+        }
+        log.info("warm pool started instances. templateId: {} amount: {} started: {}", template.getTemplateId(),
+            amount, started);
+        return started;
+    }
+
+    /**
+     * 为即将停机的实例预留温池位置
+     *
+     * @return false表示温池已满或未开启, 实例应当被释放
+     */
+    public synchronized boolean reserve(String instanceId) {
+        if (template.getWarmPoolSize() <= 0) {
+            return false;
+        }
+        ensureLoaded();
+        int size = stoppedInstanceIds.size() + stoppingInstanceIds.size();
+        if (size >= template.getWarmPoolSize()) {
+            return false;
+        }
+        stoppingInstanceIds.add(instanceId);
+        reconciler().track(instanceId);
+        return true;
+    }
+
+    /**
+     * 实例停机完成, 正式进入温池
+     */
+    public synchronized void add(String instanceId) {
+        stoppingInstanceIds.remove(instanceId);
+        stoppedInstanceIds.add(instanceId);
+        log.info("instance recycled to warm pool. templateId: {} instanceId: {} size: {}", template.getTemplateId(),
+            instanceId, stoppedInstanceIds.size());
+    }
+
+    /**
+     * 停机失败, 释放预留的位置
+     */
+    public synchronized void cancel(String instanceId) {
+        stoppingInstanceIds.remove(instanceId);
+        reconciler().untrack(instanceId);
+    }
+
+    public synchronized int size() {
+        return stoppedInstanceIds.size();
+    }
+
+    private synchronized List<String> take(int amount) {
+        if (template.getWarmPoolSize() <= 0 && !loaded) {
+            return Lists.newArrayList();
+        }
+        ensureLoaded();
+        AlibabaEcsInstanceReconciler reconciler = reconciler();
+        List<String> instanceIds = Lists.newArrayList();
+        Iterator<String> iterator = stoppedInstanceIds.iterator();
+        while (iterator.hasNext() && instanceIds.size() < amount) {
+            String instanceId = iterator.next();
+            iterator.remove();
+            reconciler.untrack(instanceId);
+            // 在温池外被释放的实例
+            if (AlibabaEcsInstanceReconciler.STATUS_UNKNOWN.equals(reconciler.getStatus(instanceId))) {
+                log.warn("warm pool instance released, skip. instanceId: {}", instanceId);
+                continue;
+            }
+            instanceIds.add(instanceId);
+        }
+        return instanceIds;
+    }
+
+    private synchronized void putBack(List<String> instanceIds) {
+        stoppedInstanceIds.addAll(instanceIds);
+        for (String instanceId : instanceIds) {
+            reconciler().track(instanceId);
+        }
+    }
+
+    private AlibabaEcsInstanceReconciler reconciler() {
+        return template.getParent().getInstanceReconciler();
+    }
+
+    /**
+     * Jenkins重启后内存中的温池为空, 通过模板标签找回仍处于停机状态的实例. 查询失败时下次再查询
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        AlibabaEcsClient connect = template.getParent().connect();
+        List<Instance> instances;
+        try {
+            instances = connect.describeInstancesStrictly("Stopped", TEMPLATE_TAG_KEY, getTemplateTagValue(template));
+        } catch (ClientException e) {
+            log.warn("warm pool load error, retry later. templateId: {}", template.getTemplateId(), e);
+            return;
+        }
+        loaded = true;
+        for (Instance instance : instances) {
+            stoppedInstanceIds.add(instance.getInstanceId());
+            reconciler().track(instance.getInstanceId());
+        }
+        log.info("warm pool loaded. templateId: {} instanceIds: {}", template.getTemplateId(), stoppedInstanceIds);
+    }
+}
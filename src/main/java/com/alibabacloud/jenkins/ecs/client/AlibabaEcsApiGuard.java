@@ -0,0 +1,189 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import com.aliyuncs.AcsRequest;
+import com.aliyuncs.AcsResponse;
+import com.aliyuncs.IAcsClient;
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ECS OpenAPI调用的限流、重试和熔断.
+ * <p>
+ * 每个API按ECS的流控配额使用令牌桶限流, 只对限流和服务端暂时不可用的错误按带抖动的指数退避重试,
+ * 创建类的调用带上ClientToken, 重试不会重复创建资源. 服务端连续多次不可用时熔断, 熔断期间的调用直接失败,
+ * 不再等待超时.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsApiGuard {
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_BACKOFF_MILLIS = 200L;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    public static final String CIRCUIT_OPEN_CODE = "SDK.CircuitOpen";
+
+    /**
+     * 默认每秒调用次数
+     */
+    private static final double DEFAULT_PERMITS_PER_SECOND = 20;
+
+    /**
+     * 与ECS默认流控配额一致, 低于配额留出其他客户端的余量
+     */
+    private static final Map<String, Double> PERMITS_PER_SECOND = ImmutableMap.<String, Double>builder()
+        .put("DescribeInstances", 50D)
+        .put("DescribeInstanceStatus", 50D)
+        .put("DescribeSpotPriceHistory", 20D)
+        .put("DescribeAvailableResource", 10D)
+        .put("RunInstances", 10D)
+        .put("DeleteInstances", 10D)
+        .put("StartInstances", 10D)
+        .put("StopInstances", 10D)
+        .put("CreateImage", 2D)
+        .put("InvokeCommand", 10D)
+        .build();
+
+    /**
+     * 支持ClientToken幂等的创建类API
+     */
+    private static final Set<String> IDEMPOTENT_ACTIONS = ImmutableSet.of("RunInstances", "CreateVpc",
+        "CreateVSwitch", "CreateSecurityGroup", "AuthorizeSecurityGroup", "CreateImage", "CreateLaunchTemplate",
+        "CreateLaunchTemplateVersion", "CreateCommand", "InvokeCommand", "DeleteInstances");
+
+    /**
+     * 可以重试的错误码, 其余错误(参数错误、库存不足等)重试也不会成功
+     */
+    private static final Set<String> THROTTLING_CODES = ImmutableSet.of("Throttling", "Throttling.User",
+        "Throttling.Api", "Throttling.Resource");
+    private static final Set<String> UNAVAILABLE_CODES = ImmutableSet.of("ServiceUnavailable", "InternalError",
+        "UnknownError", "SDK.ServerUnreachable");
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long circuitOpenUntil;
+
+    /**
+     * 熔断计时使用的时钟, 单位毫秒
+     */
+    private final LongSupplier clock;
+
+    public AlibabaEcsApiGuard() {
+        this(System::currentTimeMillis);
+    }
+
+    AlibabaEcsApiGuard(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    private static final class TokenBucket {
+        private final double permitsPerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.tokens = permitsPerSecond;
+        }
+
+        /**
+         * 预占一个令牌
+         *
+         * @return 需要等待的毫秒数
+         */
+        private synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(permitsPerSecond, tokens + (now - lastRefill) / 1e9 * permitsPerSecond);
+            lastRefill = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0L : (long)Math.ceil(-tokens / permitsPerSecond * 1000);
+        }
+    }
+
+    public <T extends AcsResponse> T invoke(IAcsClient client, AcsRequest<T> request) throws ClientException {
+        String action = request.getSysActionName();
+        if (IDEMPOTENT_ACTIONS.contains(action) && !request.getSysQueryParameters().containsKey("ClientToken")) {
+            // 同一次调用的所有重试使用相同的ClientToken
+            request.putQueryParameter("ClientToken", UUID.randomUUID().toString());
+        }
+        for (int attempt = 1; ; attempt++) {
+            checkCircuit(action);
+            acquire(action);
+            try {
+                T response = client.getAcsResponse(request);
+                consecutiveFailures.set(0);
+                return response;
+            } catch (ClientException e) {
+                boolean unavailable = UNAVAILABLE_CODES.contains(e.getErrCode());
+                if (unavailable) {
+                    recordFailure(action);
+                }
+                if (!(unavailable || THROTTLING_CODES.contains(e.getErrCode())) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                long backoff = ThreadLocalRandom.current().nextLong(
+                    Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt) + 1);
+                log.warn("{} failed, retry in {}ms. attempt: {} errCode: {}", action, backoff, attempt,
+                    e.getErrCode());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void acquire(String action) throws ClientException {
+        TokenBucket bucket = buckets.computeIfAbsent(action,
+            key -> new TokenBucket(PERMITS_PER_SECOND.getOrDefault(key, DEFAULT_PERMITS_PER_SECOND)));
+        long wait = bucket.reserve();
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("SDK.Interrupted", action + " interrupted while rate limited");
+        }
+    }
+
+    private void checkCircuit(String action) throws ClientException {
+        long openUntil = circuitOpenUntil;
+        long now = clock.getAsLong();
+        if (now < openUntil) {
+            throw new ClientException(CIRCUIT_OPEN_CODE,
+                action + " rejected, ECS API unavailable. retry after " + (openUntil - now) + "ms");
+        }
+    }
+
+    /**
+     * 熔断时间结束后允许调用, 再次失败时立即重新熔断, 成功后恢复
+     */
+    private void recordFailure(String action) {
+        if (consecutiveFailures.incrementAndGet() >= CIRCUIT_FAILURE_THRESHOLD) {
+            circuitOpenUntil = clock.getAsLong() + CIRCUIT_OPEN_MILLIS;
+            log.error("ECS API unavailable, circuit open for {}ms. action: {} consecutiveFailures: {}",
+                CIRCUIT_OPEN_MILLIS, action, consecutiveFailures.get());
+        }
+    }
+
+    public boolean isCircuitOpen() {
+        return clock.getAsLong() < circuitOpenUntil;
+    }
+}
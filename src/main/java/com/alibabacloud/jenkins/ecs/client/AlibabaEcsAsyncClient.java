@@ -0,0 +1,145 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.aliyuncs.ecs.model.v20140526.DescribeInstancesResponse.Instance;
+import com.aliyuncs.ecs.model.v20140526.DescribeRegionsResponse.Region;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AlibabaEcsClient}的异步调用.
+ * <p>
+ * 每个cloud一个实例, 调用在有界线程池中执行. 节点创建(创建实例、补全实例信息)、实例状态同步、节点释放、
+ * 云助手和连接检查对ECS API的调用都通过这里提交, 并发数在这里统一限制; 配置页面和镜像烘焙等低频的操作仍直接使用{@link AlibabaEcsClient}.
+ * 调用失败时future以对应的异常结束, 线程池满时以{@link RejectedExecutionException}结束.
+ * 调用统计在节点列表页面的cloud下方展示, 并由连接检查定期输出到日志.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsAsyncClient {
+    private static final int MAX_THREADS = 8;
+    private static final int MAX_QUEUED_CALLS = 200;
+
+    private volatile Supplier<AlibabaEcsClient> client;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    /**
+     * @param client 每次调用时取得当前的client, AccessKey轮换后自动使用新的client
+     */
+    public AlibabaEcsAsyncClient(String cloudName, Supplier<AlibabaEcsClient> client) {
+        this.client = client;
+        this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_CALLS),
+            new NamingThreadFactory(new DaemonThreadFactory(), "AlibabaEcsAsyncClient-" + cloudName));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * cloud保存配置后沿用同一个线程池, 改为从新的cloud取得client
+     */
+    public void rebind(Supplier<AlibabaEcsClient> client) {
+        this.client = client;
+    }
+
+    public interface Call<T> {
+        /**
+         * @throws Exception 调用失败, future以该异常结束
+         */
+        T call(AlibabaEcsClient client) throws Exception;
+    }
+
+    public <T> CompletableFuture<T> submit(String operation, Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submitted.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                long start = System.currentTimeMillis();
+                try {
+                    future.complete(call.call(client.get()));
+                    completed.incrementAndGet();
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    future.completeExceptionally(e);
+                } finally {
+                    long latency = System.currentTimeMillis() - start;
+                    totalLatencyMillis.addAndGet(latency);
+                    log.debug("{} finished. latency: {}ms", operation, latency);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.warn("{} rejected. queueSize: {}", operation, executor.getQueue().size());
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> deleteInstances(List<String> instanceIds, boolean force) {
+        return submit("deleteInstances", c -> {
+            c.deleteInstancesStrictly(instanceIds, force);
+            return null;
+        });
+    }
+
+    /**
+     * @return 仍存在的实例, 查询失败时future以异常结束, 不会被当作实例已释放
+     */
+    public CompletableFuture<List<Instance>> describeInstances(List<String> instanceIds) {
+        return submit("describeInstances", c -> c.describeInstancesStrictly(instanceIds));
+    }
+
+    public CompletableFuture<List<Region>> describeRegions() {
+        return submit("describeRegions", AlibabaEcsClient::describeRegionsStrictly);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getAverageLatencyMillis() {
+        long finished = completed.get() + failed.get();
+        return finished == 0 ? 0L : totalLatencyMillis.get() / finished;
+    }
+
+    @Override
+    public String toString() {
+        return "AlibabaEcsAsyncClient{active=" + getActiveCount() + ", queued=" + getQueueSize() + ", submitted="
+            + getSubmittedCount() + ", completed=" + getCompletedCount() + ", failed=" + getFailedCount()
+            + ", rejected=" + getRejectedCount() + ", avgLatencyMillis=" + getAverageLatencyMillis() + "}";
+    }
+}
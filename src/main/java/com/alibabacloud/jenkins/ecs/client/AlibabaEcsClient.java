@@ -1,10 +1,14 @@
 package com.alibabacloud.jenkins.ecs.client;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import com.alibaba.fastjson.JSON;
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsPageException;
 
 import com.aliyuncs.DefaultAcsClient;
 import com.aliyuncs.IAcsClient;
@@ -20,10 +24,13 @@ import com.aliyuncs.ecs.model.v20140526.DescribeSecurityGroupsResponse.SecurityG
 import com.aliyuncs.ecs.model.v20140526.DescribeVSwitchesResponse.VSwitch;
 import com.aliyuncs.ecs.model.v20140526.DescribeVpcsResponse.Vpc;
 import com.aliyuncs.ecs.model.v20140526.DescribeZonesResponse.Zone;
+import com.aliyuncs.exceptions.ClientException;
 import com.aliyuncs.http.FormatType;
+import com.aliyuncs.http.HttpClientConfig;
 import com.aliyuncs.profile.DefaultProfile;
-import com.aliyuncs.profile.IClientProfile;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
@@ -35,70 +42,205 @@ import org.apache.commons.lang.StringUtils;
 public class AlibabaEcsClient {
 
     private IAcsClient client;
+    private final AlibabaEcsApiGuard guard = new AlibabaEcsApiGuard();
+    private final AlibabaEcsResponseCache responseCache = new AlibabaEcsResponseCache();
     private String regionNo;
     private static Integer MAX_PAGE_SIZE = 50;
-    private static Integer INIT_PAGE_NUMBER = 1;
+    private static final int MAX_INSTANCE_IDS = 100;
+
+    private static final int MAX_CONNECTIONS = 64;
+    private static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * 配置页面等待未缓存查询的最长时间
+     */
+    private static final long CACHED_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
     public AlibabaEcsClient(AlibabaCloudCredentials credentials, String regionNo) {
-        IClientProfile profile = DefaultProfile.getProfile(regionNo,
+        DefaultProfile profile = DefaultProfile.getProfile(regionNo,
                 credentials.getAccessKeyId(),
                 credentials.getAccessKeySecret());
+        profile.setHttpClientConfig(createHttpClientConfig());
         this.client = new DefaultAcsClient(profile);
         this.regionNo = regionNo;
         log.info("AlibabaEcsClient init success. regionNo: {}", regionNo);
     }
 
-    public List<Region> describeRegions() {
+    /**
+     * 一个client被多个cloud和线程共用, 连接池按并发调用的数量设置, 长连接避免每次调用重新握手
+     */
+    private static HttpClientConfig createHttpClientConfig() {
+        HttpClientConfig config = HttpClientConfig.getDefault();
+        config.setMaxRequests(MAX_CONNECTIONS);
+        config.setMaxRequestsPerHost(MAX_CONNECTIONS);
+        config.setMaxIdleConnections(MAX_CONNECTIONS);
+        config.setKeepAliveDurationMillis(KEEP_ALIVE_MILLIS);
+        config.setConnectionTimeoutMillis(CONNECT_TIMEOUT_MILLIS);
+        config.setReadTimeoutMillis(READ_TIMEOUT_MILLIS);
+        return config;
+    }
+
+    public String getRegionNo() {
+        return regionNo;
+    }
+
+    /**
+     * @return ECS API是否可用, 连续多次服务端错误后一段时间内返回false
+     */
+    public boolean isAvailable() {
+        return !guard.isCircuitOpen();
+    }
+
+    /**
+     * 关闭连接池, 关闭后client不可再用
+     */
+    public void shutdown() {
+        client.shutdown();
+    }
+
+    /**
+     * 带缓存的查询, 用于配置页面等不要求实时结果的场景. 只缓存成功且完整的结果, loader应当在查询失败时抛出异常.
+     * 没有缓存时最多等待10秒, 超时抛出异常, 查询在后台完成后下次调用直接返回
+     *
+     * @param query 查询及其参数, 以操作名开头, 例如"describeVsws:zone:vpc"
+     */
+    public <T> T cached(String query, AlibabaEcsResponseCache.Loader<T> loader) throws ClientException {
+        return responseCache.get(query, loader, CACHED_WAIT_MILLIS);
+    }
+
+    /**
+     * 使以queryPrefix开头的缓存查询失效
+     */
+    public void invalidateCached(String queryPrefix) {
+        responseCache.invalidate(queryPrefix);
+    }
+
+    /**
+     * 查询所有页, 任意一页失败时返回空列表, 不返回不完整的结果
+     */
+    private static <T> List<T> listAll(AlibabaEcsPageIterator<T> iterator) {
         try {
-            DescribeRegionsRequest request = new DescribeRegionsRequest();
-            request.setSysRegionId(regionNo);
-            DescribeRegionsResponse acsResponse = client.getAcsResponse(request);
-            if (CollectionUtils.isEmpty(acsResponse.getRegions())) {
-                return Lists.newArrayList();
+            return Lists.newArrayList(iterator);
+        } catch (AlibabaEcsPageException e) {
+            return Lists.newArrayList();
+        }
+    }
+
+    /**
+     * 查询所有页, 任意一页失败时抛出该页的异常, 调用方可以区分"没有结果"和"查询失败"
+     */
+    private static <T> List<T> listAllStrictly(AlibabaEcsPageIterator<T> iterator) throws ClientException {
+        try {
+            return Lists.newArrayList(iterator);
+        } catch (AlibabaEcsPageException e) {
+            if (e.getCause() instanceof ClientException) {
+                throw (ClientException)e.getCause();
             }
-            return acsResponse.getRegions();
+            ClientException clientException = new ClientException("SDK.PageError", e.getMessage());
+            clientException.initCause(e);
+            throw clientException;
+        }
+    }
+
+    public List<Region> describeRegions() {
+        try {
+            return describeRegionsStrictly();
         } catch (Exception e) {
             log.error("describeRegions error.", e);
         }
         return Lists.newArrayList();
     }
 
+    public List<Region> describeRegionsStrictly() throws ClientException {
+        DescribeRegionsRequest request = new DescribeRegionsRequest();
+        request.setSysRegionId(regionNo);
+        DescribeRegionsResponse acsResponse = guard.invoke(client, request);
+        if (CollectionUtils.isEmpty(acsResponse.getRegions())) {
+            return Lists.newArrayList();
+        }
+        return acsResponse.getRegions();
+    }
+
+    /**
+     * 查询所有页. 各页依次复用request, 不预取
+     */
     public List<DescribeImagesResponse.Image> describeImages(DescribeImagesRequest request) {
+        return listAll(iterateImages(request));
+    }
+
+    public List<DescribeImagesResponse.Image> describeImagesStrictly(DescribeImagesRequest request)
+        throws ClientException {
+        return listAllStrictly(iterateImages(request));
+    }
+
+    private AlibabaEcsPageIterator<DescribeImagesResponse.Image> iterateImages(DescribeImagesRequest request) {
+        return new AlibabaEcsPageIterator<>("describeImages", MAX_PAGE_SIZE, 0, (pageNumber, pageSize) -> {
+            request.setSysRegionId(regionNo);
+            request.setPageNumber(pageNumber);
+            request.setPageSize(pageSize);
+            return guard.invoke(client, request).getImages();
+        });
+    }
+
+    /**
+     * 以实例的系统盘创建自定义镜像
+     *
+     * @return 镜像ID, 失败时返回null
+     */
+    public String createImage(String instanceId, String imageName) {
         try {
+            CreateImageRequest request = new CreateImageRequest();
             request.setSysRegionId(regionNo);
-            DescribeImagesResponse acsResponse = client.getAcsResponse(request);
-            if (CollectionUtils.isEmpty(acsResponse.getImages())) {
-                return Lists.newArrayList();
-            }
-            return acsResponse.getImages();
+            request.setInstanceId(instanceId);
+            request.setImageName(imageName);
+            CreateImageResponse acsResponse = guard.invoke(client, request);
+            log.info("createImage success. instanceId: {} imageId: {}", instanceId, acsResponse.getImageId());
+            responseCache.invalidate("describeImages");
+            return acsResponse.getImageId();
         } catch (Exception e) {
-            log.error("describeImages error.", e);
+            log.error("createImage error. instanceId: {} imageName: {}", instanceId, imageName, e);
         }
-        return Lists.newArrayList();
+        return null;
+    }
+
+    /**
+     * @return 镜像状态, 如Creating、Available、CreateFailed, 查询失败或镜像不存在时返回null
+     */
+    public String describeImageStatus(String imageId) {
+        DescribeImagesRequest request = new DescribeImagesRequest();
+        request.setImageId(imageId);
+        request.setStatus("Creating,Waiting,Available,UnAvailable,CreateFailed");
+        List<DescribeImagesResponse.Image> images = describeImages(request);
+        if (CollectionUtils.isEmpty(images)) {
+            return null;
+        }
+        return images.get(0).getStatus();
     }
 
     public List<Vpc> describeVpcs() {
-        DescribeVpcsRequest request = new DescribeVpcsRequest();
-        request.setPageNumber(INIT_PAGE_NUMBER);
-        request.setPageSize(MAX_PAGE_SIZE);
-        request.setSysRegionId(regionNo);
-        List<Vpc> vpcList = Lists.newArrayList();
-        DescribeVpcsResponse acsResponse = new DescribeVpcsResponse();
-        acsResponse.setVpcs(vpcList);
-        do {
-            try {
-                acsResponse = client.getAcsResponse(request);
-                if (null == acsResponse || CollectionUtils.isEmpty(acsResponse.getVpcs())) {
-                    break;
-                }
-                vpcList.addAll(acsResponse.getVpcs());
-            } catch (Exception e) {
-                log.error("describeVpcs error.regionId: {}", regionNo, e);
-            }
-            request.setPageNumber(request.getPageNumber() + 1);
-        } while (acsResponse.getVpcs().size() == MAX_PAGE_SIZE);
+        return listAll(iterateVpcs(MAX_PAGE_SIZE, 1));
+    }
 
-        return vpcList;
+    /**
+     * 与{@link #describeVpcs()}相同, 但查询失败时抛出异常, 用于根据查询结果为空决定是否创建VPC的场景
+     */
+    public List<Vpc> describeVpcsStrictly() throws ClientException {
+        return listAllStrictly(iterateVpcs(MAX_PAGE_SIZE, 1));
+    }
+
+    /**
+     * 逐页查询, 只需要部分结果时调用方提前close, 不会查询剩余的页
+     */
+    public AlibabaEcsPageIterator<Vpc> iterateVpcs(int pageSize, int lookAhead) {
+        return new AlibabaEcsPageIterator<>("describeVpcs", pageSize, lookAhead, (pageNumber, size) -> {
+            DescribeVpcsRequest request = new DescribeVpcsRequest();
+            request.setSysRegionId(regionNo);
+            request.setPageNumber(pageNumber);
+            request.setPageSize(size);
+            return guard.invoke(client, request).getVpcs();
+        });
     }
 
     public Vpc describeVpc(String vpcId) {
@@ -112,7 +254,7 @@ public class AlibabaEcsClient {
         DescribeVpcsResponse acsResponse = null;
         Vpc vpcInstance = null;
         try {
-            acsResponse = client.getAcsResponse(request);
+            acsResponse = guard.invoke(client, request);
             if (null != acsResponse && null != acsResponse.getVpcs() && !acsResponse.getVpcs().isEmpty()) {
                 vpcInstance = acsResponse.getVpcs().get(0);
             }
@@ -128,9 +270,10 @@ public class AlibabaEcsClient {
             CreateVpcRequest request = new CreateVpcRequest();
             request.setSysRegionId(regionNo);
             request.setCidrBlock(cidrBlock);
-            CreateVpcResponse acsResponse = client.getAcsResponse(request);
+            CreateVpcResponse acsResponse = guard.invoke(client, request);
             log.info("createVpc success. region: {} cidrBlock: {} vpcId: {}", regionNo, cidrBlock,
                     acsResponse.getVpcId());
+            responseCache.invalidateAll();
             return acsResponse.getVpcId();
         } catch (Exception e) {
             log.error("createVpc error.", e);
@@ -142,8 +285,9 @@ public class AlibabaEcsClient {
         try {
             DeleteVpcRequest request = new DeleteVpcRequest();
             request.setVpcId(vpcId);
-            client.getAcsResponse(request);
+            guard.invoke(client, request);
             log.info("delete vpc success. vpcId: {}", vpcId);
+            responseCache.invalidateAll();
             return true;
         } catch (Exception e) {
             log.error("delete vpc error. vpcId: {}", vpcId, e);
@@ -152,19 +296,25 @@ public class AlibabaEcsClient {
     }
 
     public List<SecurityGroup> describeSecurityGroups(String vpc) {
-        try {
+        return listAll(iterateSecurityGroups(vpc, MAX_PAGE_SIZE, 1));
+    }
+
+    /**
+     * 与{@link #describeSecurityGroups(String)}相同, 但查询失败时抛出异常
+     */
+    public List<SecurityGroup> describeSecurityGroupsStrictly(String vpc) throws ClientException {
+        return listAllStrictly(iterateSecurityGroups(vpc, MAX_PAGE_SIZE, 1));
+    }
+
+    public AlibabaEcsPageIterator<SecurityGroup> iterateSecurityGroups(String vpc, int pageSize, int lookAhead) {
+        return new AlibabaEcsPageIterator<>("describeSecurityGroups", pageSize, lookAhead, (pageNumber, size) -> {
             DescribeSecurityGroupsRequest request = new DescribeSecurityGroupsRequest();
             request.setSysRegionId(regionNo);
             request.setVpcId(vpc);
-            DescribeSecurityGroupsResponse acsResponse = client.getAcsResponse(request);
-            if (CollectionUtils.isEmpty(acsResponse.getSecurityGroups())) {
-                return Lists.newArrayList();
-            }
-            return acsResponse.getSecurityGroups();
-        } catch (Exception e) {
-            log.error("describeSecurityGroups error.", e);
-        }
-        return Lists.newArrayList();
+            request.setPageNumber(pageNumber);
+            request.setPageSize(size);
+            return guard.invoke(client, request).getSecurityGroups();
+        });
     }
 
     public String createSecurityGroup(String vpcId) {
@@ -172,12 +322,13 @@ public class AlibabaEcsClient {
             CreateSecurityGroupRequest request = new CreateSecurityGroupRequest();
             request.setSysRegionId(regionNo);
             request.setVpcId(vpcId);
-            CreateSecurityGroupResponse acsResponse = client.getAcsResponse(request);
+            CreateSecurityGroupResponse acsResponse = guard.invoke(client, request);
             if (StringUtils.isBlank(acsResponse.getSecurityGroupId())) {
                 return null;
             }
             log.info("createSecurityGroup success. vpcId: {} securityGroupId: {}", vpcId,
                     acsResponse.getSecurityGroupId());
+            responseCache.invalidateAll();
             return acsResponse.getSecurityGroupId();
         } catch (Exception e) {
             log.error("createSecurityGroup error. vpcId: {}", vpcId, e);
@@ -194,7 +345,7 @@ public class AlibabaEcsClient {
             authRequest.setPortRange(portRange);
             authRequest.setSecurityGroupId(securityGroupId);
             authRequest.setSourceCidrIp(sourceCidrIp);
-            client.getAcsResponse(authRequest);
+            guard.invoke(client, authRequest);
             log.info("authorizeSecurityGroup success. protocol: {} portRange: {} securityGroupId: {} sourceCidrIp: {}",
                     protocol, portRange, securityGroupId, sourceCidrIp);
             return true;
@@ -214,7 +365,7 @@ public class AlibabaEcsClient {
         try {
             DescribeZonesRequest request = new DescribeZonesRequest();
             request.setSysRegionId(regionNo);
-            DescribeZonesResponse acsResponse = client.getAcsResponse(request);
+            DescribeZonesResponse acsResponse = guard.invoke(client, request);
             if (CollectionUtils.isEmpty(acsResponse.getZones())) {
                 return Lists.newArrayList();
             }
@@ -227,44 +378,51 @@ public class AlibabaEcsClient {
 
     public List<String> describeAvailableZones() {
         try {
-            List<String> zoneIds = Lists.newArrayList();
-            DescribeAvailableResourceRequest resourceRequest = new DescribeAvailableResourceRequest();
-            resourceRequest.setSysRegionId(regionNo);
-            resourceRequest.setDestinationResource("Zone");
-            DescribeAvailableResourceResponse acsResponse = client.getAcsResponse(resourceRequest);
-            for (AvailableZone availableZone : acsResponse.getAvailableZones()) {
-                if (!"Available".equalsIgnoreCase(availableZone.getStatus())) {
-                    continue;
-                }
-                if (!"WithStock".equals(availableZone.getStatusCategory())) {
-                    continue;
-                }
-                zoneIds.add(availableZone.getZoneId());
-            }
-            return zoneIds;
+            return describeAvailableZonesStrictly();
         } catch (Exception e) {
             log.error("describeAvailableZones error.", e);
         }
         return Lists.newArrayList();
     }
 
-    public List<VSwitch> describeVsws(String zone, String vpc) {
-        try {
-            DescribeVSwitchesRequest describeZonesRequest = new DescribeVSwitchesRequest();
-            describeZonesRequest.setSysRegionId(regionNo);
-            if (StringUtils.isNotEmpty(zone)) {
-                describeZonesRequest.setZoneId(zone);
+    public List<String> describeAvailableZonesStrictly() throws ClientException {
+        List<String> zoneIds = Lists.newArrayList();
+        DescribeAvailableResourceRequest resourceRequest = new DescribeAvailableResourceRequest();
+        resourceRequest.setSysRegionId(regionNo);
+        resourceRequest.setDestinationResource("Zone");
+        DescribeAvailableResourceResponse acsResponse = guard.invoke(client, resourceRequest);
+        for (AvailableZone availableZone : acsResponse.getAvailableZones()) {
+            if (!"Available".equalsIgnoreCase(availableZone.getStatus())) {
+                continue;
             }
-            describeZonesRequest.setVpcId(vpc);
-            DescribeVSwitchesResponse acsResponse = client.getAcsResponse(describeZonesRequest);
-            if (CollectionUtils.isEmpty(acsResponse.getVSwitches())) {
-                return Lists.newArrayList();
+            if (!"WithStock".equals(availableZone.getStatusCategory())) {
+                continue;
             }
-            return acsResponse.getVSwitches();
-        } catch (Exception e) {
-            log.error("describeVsws error.", e);
+            zoneIds.add(availableZone.getZoneId());
         }
-        return Lists.newArrayList();
+        return zoneIds;
+    }
+
+    public List<VSwitch> describeVsws(String zone, String vpc) {
+        return listAll(iterateVsws(zone, vpc, MAX_PAGE_SIZE, 1));
+    }
+
+    public List<VSwitch> describeVswsStrictly(String zone, String vpc) throws ClientException {
+        return listAllStrictly(iterateVsws(zone, vpc, MAX_PAGE_SIZE, 1));
+    }
+
+    public AlibabaEcsPageIterator<VSwitch> iterateVsws(String zone, String vpc, int pageSize, int lookAhead) {
+        return new AlibabaEcsPageIterator<>("describeVsws", pageSize, lookAhead, (pageNumber, size) -> {
+            DescribeVSwitchesRequest request = new DescribeVSwitchesRequest();
+            request.setSysRegionId(regionNo);
+            if (StringUtils.isNotEmpty(zone)) {
+                request.setZoneId(zone);
+            }
+            request.setVpcId(vpc);
+            request.setPageNumber(pageNumber);
+            request.setPageSize(size);
+            return guard.invoke(client, request).getVSwitches();
+        });
     }
 
     public String createVsw(String zone, String vpc, String cidrBlock) {
@@ -274,9 +432,10 @@ public class AlibabaEcsClient {
             createVswRequest.setZoneId(zone);
             createVswRequest.setVpcId(vpc);
             createVswRequest.setCidrBlock(cidrBlock);
-            CreateVSwitchResponse acsResponse = client.getAcsResponse(createVswRequest);
+            CreateVSwitchResponse acsResponse = guard.invoke(client, createVswRequest);
             log.info("createVsw success. zone: {} vpc: {} cidrBlock: {} vswId: {}",
                     zone, vpc, cidrBlock, acsResponse.getVSwitchId());
+            responseCache.invalidateAll();
             return acsResponse.getVSwitchId();
         } catch (Exception e) {
             log.error("createVsw error. zone: {} vpc: {} cidrBlock: {}", zone, vpc, cidrBlock, e);
@@ -288,8 +447,9 @@ public class AlibabaEcsClient {
         try {
             DeleteVSwitchRequest deleteVSwitchRequest = new DeleteVSwitchRequest();
             deleteVSwitchRequest.setVSwitchId(vSwitchId);
-            client.getAcsResponse(deleteVSwitchRequest);
+            guard.invoke(client, deleteVSwitchRequest);
             log.info("deleteVSW success. vswId: {}", vSwitchId);
+            responseCache.invalidateAll();
             return true;
         } catch (Exception e) {
             log.error("deleteVsw error. vswId: {}", vSwitchId, e);
@@ -298,26 +458,71 @@ public class AlibabaEcsClient {
     }
 
     public List<String> describeInstanceTypes(String zone, int core, float memInGb) {
+        try {
+            return describeInstanceTypesStrictly(zone, core, memInGb);
+        } catch (Exception e) {
+            log.error("describeSpotInstanceTypes error.", e);
+        }
+        return Lists.newArrayList();
+    }
+
+    public List<String> describeInstanceTypesStrictly(String zone, int core, float memInGb) throws ClientException {
+        DescribeAvailableResourceRequest resourceRequest = new DescribeAvailableResourceRequest();
+        resourceRequest.setDestinationResource("InstanceType");
+        resourceRequest.setIoOptimized("optimized");
+        resourceRequest.setNetworkCategory("vpc");
+        resourceRequest.setResourceType("instance");
+        resourceRequest.setSpotStrategy("SpotAsPriceGo");
+        resourceRequest.setInstanceChargeType("PostPaid");
+        resourceRequest.setCores(core);
+        resourceRequest.setMemory(memInGb);
+        DescribeAvailableResourceResponse acsResponse = guard.invoke(client, resourceRequest);
+        if (CollectionUtils.isEmpty(acsResponse.getAvailableZones())) {
+            return Lists.newArrayList();
+        }
+        List<String> instanceTypes = Lists.newArrayList();
+
+        for (AvailableZone availableZone : acsResponse.getAvailableZones()) {
+            if (!zone.equals(availableZone.getZoneId())) {
+                continue;
+            }
+            for (AvailableResource availableResource : availableZone.getAvailableResources()) {
+                if (!"InstanceType".equals(availableResource.getType())) {
+                    continue;
+                }
+                for (SupportedResource supportedResource : availableResource.getSupportedResources()) {
+                    if ("Available".equals(supportedResource.getStatus()) && "WithStock".equals(
+                            supportedResource.getStatusCategory())) {
+                        instanceTypes.add(supportedResource.getValue());
+                    }
+                }
+            }
+        }
+        return instanceTypes;
+    }
+
+    /**
+     * 查询地域内各可用区有库存的抢占式实例规格
+     *
+     * @return key为可用区ID, value为有库存的实例规格; 查询失败时返回空Map
+     */
+    public Map<String, Set<String>> describeSpotStock() {
+        Map<String, Set<String>> stock = Maps.newHashMap();
         try {
             DescribeAvailableResourceRequest resourceRequest = new DescribeAvailableResourceRequest();
+            resourceRequest.setSysRegionId(regionNo);
             resourceRequest.setDestinationResource("InstanceType");
             resourceRequest.setIoOptimized("optimized");
             resourceRequest.setNetworkCategory("vpc");
             resourceRequest.setResourceType("instance");
             resourceRequest.setSpotStrategy("SpotAsPriceGo");
             resourceRequest.setInstanceChargeType("PostPaid");
-            resourceRequest.setCores(core);
-            resourceRequest.setMemory(memInGb);
-            DescribeAvailableResourceResponse acsResponse = client.getAcsResponse(resourceRequest);
+            DescribeAvailableResourceResponse acsResponse = guard.invoke(client, resourceRequest);
             if (CollectionUtils.isEmpty(acsResponse.getAvailableZones())) {
-                return Lists.newArrayList();
+                return stock;
             }
-            List<String> instanceTypes = Lists.newArrayList();
-
             for (AvailableZone availableZone : acsResponse.getAvailableZones()) {
-                if (!zone.equals(availableZone.getZoneId())) {
-                    continue;
-                }
+                Set<String> instanceTypes = Sets.newHashSet();
                 for (AvailableResource availableResource : availableZone.getAvailableResources()) {
                     if (!"InstanceType".equals(availableResource.getType())) {
                         continue;
@@ -329,59 +534,207 @@ public class AlibabaEcsClient {
                         }
                     }
                 }
+                stock.put(availableZone.getZoneId(), instanceTypes);
             }
-            return instanceTypes;
         } catch (Exception e) {
-            log.error("describeSpotInstanceTypes error.", e);
+            log.error("describeSpotStock error.", e);
         }
-        return Lists.newArrayList();
+        return stock;
     }
 
-    public List<KeyPair> describeKeyPairs(@Nullable String keyPairName, @Nullable String pfp) {
+    /**
+     * 查询地域内所有实例规格的vCPU和内存
+     */
+    public List<DescribeInstanceTypesResponse.InstanceType> describeInstanceTypeSpecs() {
         try {
-            DescribeKeyPairsRequest request = new DescribeKeyPairsRequest();
+            DescribeInstanceTypesRequest request = new DescribeInstanceTypesRequest();
             request.setSysRegionId(regionNo);
-            request.setKeyPairName(keyPairName);
-            request.setKeyPairFingerPrint(pfp);
-            DescribeKeyPairsResponse acsResponse = client.getAcsResponse(request);
-            log.info(JSON.toJSONString(acsResponse));
-            List<KeyPair> keyPairs = acsResponse.getKeyPairs();
-            if (CollectionUtils.isEmpty(keyPairs)) {
+            DescribeInstanceTypesResponse acsResponse = guard.invoke(client, request);
+            if (CollectionUtils.isEmpty(acsResponse.getInstanceTypes())) {
                 return Lists.newArrayList();
             }
-            return keyPairs;
+            return acsResponse.getInstanceTypes();
         } catch (Exception e) {
-            log.error("listKeyPairs error", e);
+            log.error("describeInstanceTypeSpecs error.", e);
         }
         return Lists.newArrayList();
     }
 
-    public List<Instance> describeInstances(List<String> instanceIds) {
+    /**
+     * 查询抢占式实例最近的价格
+     *
+     * @return 每小时价格, 查询失败或没有价格记录时返回null
+     */
+    public Float describeLatestSpotPrice(String zone, String instanceType) {
         try {
-            DescribeInstancesRequest request = new DescribeInstancesRequest();
-            request.setInstanceIds(JSON.toJSONString(instanceIds));
-            DescribeInstancesResponse acsResponse = client.getAcsResponse(request);
-            if (CollectionUtils.isEmpty(acsResponse.getInstances())) {
-                return Lists.newArrayList();
+            DescribeSpotPriceHistoryRequest request = new DescribeSpotPriceHistoryRequest();
+            request.setSysRegionId(regionNo);
+            request.setZoneId(zone);
+            request.setInstanceType(instanceType);
+            request.setNetworkType("vpc");
+            request.setIoOptimized("optimized");
+            DescribeSpotPriceHistoryResponse acsResponse = guard.invoke(client, request);
+            List<DescribeSpotPriceHistoryResponse.SpotPriceType> spotPrices = acsResponse.getSpotPrices();
+            if (CollectionUtils.isEmpty(spotPrices)) {
+                return null;
             }
-            return acsResponse.getInstances();
+            // 价格记录按时间升序返回
+            return spotPrices.get(spotPrices.size() - 1).getSpotPrice();
         } catch (Exception e) {
-            log.error("describeInstances error. instanceIds: {}", JSON.toJSONString(instanceIds), e);
+            log.error("describeLatestSpotPrice error. zone: {} instanceType: {}", zone, instanceType, e);
         }
-        return Lists.newArrayList();
+        return null;
+    }
+
+    public List<KeyPair> describeKeyPairs(@Nullable String keyPairName, @Nullable String pfp) {
+        return listAll(iterateKeyPairs(keyPairName, pfp, MAX_PAGE_SIZE, 1));
+    }
+
+    public AlibabaEcsPageIterator<KeyPair> iterateKeyPairs(@Nullable String keyPairName, @Nullable String pfp,
+                                                           int pageSize, int lookAhead) {
+        return new AlibabaEcsPageIterator<>("listKeyPairs", pageSize, lookAhead, (pageNumber, size) -> {
+            DescribeKeyPairsRequest request = new DescribeKeyPairsRequest();
+            request.setSysRegionId(regionNo);
+            request.setKeyPairName(keyPairName);
+            request.setKeyPairFingerPrint(pfp);
+            request.setPageNumber(pageNumber);
+            request.setPageSize(size);
+            return guard.invoke(client, request).getKeyPairs();
+        });
+    }
+
+    /**
+     * 按实例ID批量查询, 每100个ID一次请求
+     */
+    public List<Instance> describeInstances(List<String> instanceIds) {
+        List<Instance> instances = Lists.newArrayList();
+        for (List<String> batch : Lists.partition(instanceIds, MAX_INSTANCE_IDS)) {
+            try {
+                instances.addAll(describeInstancesStrictly(batch));
+            } catch (Exception e) {
+                log.error("describeInstances error. instanceIds: {}", JSON.toJSONString(batch), e);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * 与{@link #describeInstances(List)}相同, 但任意一页查询失败都会抛出异常,
+     * 调用方可以区分"实例已不存在"和"查询失败"
+     */
+    public List<Instance> describeInstancesStrictly(List<String> instanceIds) throws ClientException {
+        List<Instance> instances = Lists.newArrayList();
+        for (List<String> batch : Lists.partition(instanceIds, MAX_INSTANCE_IDS)) {
+            DescribeInstancesRequest request = new DescribeInstancesRequest();
+            request.setSysRegionId(regionNo);
+            request.setInstanceIds(JSON.toJSONString(batch));
+            request.setPageSize(MAX_INSTANCE_IDS);
+            DescribeInstancesResponse acsResponse = guard.invoke(client, request);
+            if (CollectionUtils.isNotEmpty(acsResponse.getInstances())) {
+                instances.addAll(acsResponse.getInstances());
+            }
+        }
+        return instances;
     }
 
     public void stopIntance(String instanceId) {
         try {
             StopInstanceRequest request = new StopInstanceRequest();
             request.setInstanceId(instanceId);
-            StopInstanceResponse acsResponse = client.getAcsResponse(request);
+            StopInstanceResponse acsResponse = guard.invoke(client, request);
             log.info("stopInstance success. instanceId: {} response: {}", instanceId, JSON.toJSONString(acsResponse));
         } catch (Exception e) {
             log.error("stopIntance error. instanceId: {}", instanceId, e);
         }
     }
 
+    /**
+     * 批量停止实例
+     *
+     * @param instanceIds 实例ID列表, 单次最多100个
+     * @param stoppedMode 停止模式, StopCharging为节省停机模式, 为空时使用ECS默认的停机模式
+     * @return 请求是否成功
+     */
+    public boolean stopInstances(List<String> instanceIds, @Nullable String stoppedMode) {
+        try {
+            StopInstancesRequest request = new StopInstancesRequest();
+            request.setSysRegionId(regionNo);
+            request.setInstanceIds(instanceIds);
+            if (StringUtils.isNotBlank(stoppedMode)) {
+                request.setStoppedMode(stoppedMode);
+            }
+            request.setBatchOptimization("SuccessFirst");
+            StopInstancesResponse acsResponse = guard.invoke(client, request);
+            log.info("stopInstances success. instanceIds: {} stoppedMode: {} response: {}",
+                    JSON.toJSONString(instanceIds), stoppedMode, JSON.toJSONString(acsResponse));
+            return true;
+        } catch (Exception e) {
+            log.error("stopInstances error. instanceIds: {}", JSON.toJSONString(instanceIds), e);
+        }
+        return false;
+    }
+
+    /**
+     * 批量启动已停止的实例. 使用SuccessFirst模式时部分实例启动失败请求仍然成功, 需要逐个检查实例的结果
+     *
+     * @param instanceIds 实例ID列表, 单次最多100个
+     * @return 成功发起启动的实例ID, 请求失败时为空列表
+     */
+    public List<String> startInstances(List<String> instanceIds) {
+        List<String> started = Lists.newArrayList();
+        try {
+            StartInstancesRequest request = new StartInstancesRequest();
+            request.setSysRegionId(regionNo);
+            request.setInstanceIds(instanceIds);
+            request.setBatchOptimization("SuccessFirst");
+            StartInstancesResponse acsResponse = guard.invoke(client, request);
+            for (StartInstancesResponse.InstanceResponse instanceResponse : acsResponse.getInstanceResponses()) {
+                if ("200".equals(instanceResponse.getCode())) {
+                    started.add(instanceResponse.getInstanceId());
+                } else {
+                    log.warn("startInstances failed on instance. instanceId: {} code: {} message: {}",
+                        instanceResponse.getInstanceId(), instanceResponse.getCode(), instanceResponse.getMessage());
+                }
+            }
+            log.info("startInstances success. instanceIds: {} started: {}", JSON.toJSONString(instanceIds),
+                    JSON.toJSONString(started));
+        } catch (Exception e) {
+            log.error("startInstances error. instanceIds: {}", JSON.toJSONString(instanceIds), e);
+        }
+        return started;
+    }
+
+    /**
+     * 按状态和标签查询实例
+     */
+    public List<Instance> describeInstances(String status, String tagKey, String tagValue) {
+        return listAll(iterateInstances(status, tagKey, tagValue, MAX_INSTANCE_IDS, 1));
+    }
+
+    /**
+     * 与{@link #describeInstances(String, String, String)}相同, 但查询失败时抛出异常
+     */
+    public List<Instance> describeInstancesStrictly(String status, String tagKey, String tagValue)
+        throws ClientException {
+        return listAllStrictly(iterateInstances(status, tagKey, tagValue, MAX_INSTANCE_IDS, 1));
+    }
+
+    public AlibabaEcsPageIterator<Instance> iterateInstances(String status, String tagKey, String tagValue,
+                                                             int pageSize, int lookAhead) {
+        return new AlibabaEcsPageIterator<>("describeInstances", pageSize, lookAhead, (pageNumber, size) -> {
+            DescribeInstancesRequest request = new DescribeInstancesRequest();
+            request.setSysRegionId(regionNo);
+            request.setStatus(status);
+            DescribeInstancesRequest.Tag tag = new DescribeInstancesRequest.Tag();
+            tag.setKey(tagKey);
+            tag.setValue(tagValue);
+            request.setTags(Lists.newArrayList(tag));
+            request.setPageNumber(pageNumber);
+            request.setPageSize(size);
+            return guard.invoke(client, request).getInstances();
+        });
+    }
+
     /**
      * @param instanceId
      */
@@ -390,27 +743,218 @@ public class AlibabaEcsClient {
             DeleteInstanceRequest request = new DeleteInstanceRequest();
             request.setInstanceId(instanceId);
             request.setForce(force);
-            DeleteInstanceResponse acsResponse = client.getAcsResponse(request);
+            DeleteInstanceResponse acsResponse = guard.invoke(client, request);
             log.info("terminateIntance success. instanceId: {} resp: {}", instanceId, JSON.toJSONString(acsResponse));
         } catch (Exception e) {
             log.error("terminateIntance error. instanceId: {}", instanceId, e);
         }
     }
 
+    /**
+     * 批量释放实例
+     *
+     * @param instanceIds 实例ID列表, 单次最多100个
+     * @param force       是否强制释放运行中的实例
+     * @return 请求是否成功
+     */
+    public boolean deleteInstances(List<String> instanceIds, boolean force) {
+        try {
+            deleteInstancesStrictly(instanceIds, force);
+            return true;
+        } catch (Exception e) {
+            log.error("deleteInstances error. instanceIds: {}", JSON.toJSONString(instanceIds), e);
+        }
+        return false;
+    }
+
+    /**
+     * 与{@link #deleteInstances(List, boolean)}相同, 但失败时抛出异常. DeleteInstances要么全部成功要么全部失败
+     */
+    public void deleteInstancesStrictly(List<String> instanceIds, boolean force) throws ClientException {
+        DeleteInstancesRequest request = new DeleteInstancesRequest();
+        request.setSysRegionId(regionNo);
+        request.setInstanceIds(instanceIds);
+        request.setForce(force);
+        DeleteInstancesResponse acsResponse = guard.invoke(client, request);
+        log.info("deleteInstances success. instanceIds: {} response: {}", JSON.toJSONString(instanceIds),
+                JSON.toJSONString(acsResponse));
+    }
+
+    /**
+     * @return 启动模板ID, 不存在或查询失败时返回null
+     */
+    public String describeLaunchTemplateId(String launchTemplateName) {
+        try {
+            DescribeLaunchTemplatesRequest request = new DescribeLaunchTemplatesRequest();
+            request.setSysRegionId(regionNo);
+            request.setLaunchTemplateNames(Lists.newArrayList(launchTemplateName));
+            DescribeLaunchTemplatesResponse acsResponse = guard.invoke(client, request);
+            if (CollectionUtils.isEmpty(acsResponse.getLaunchTemplateSets())) {
+                return null;
+            }
+            return acsResponse.getLaunchTemplateSets().get(0).getLaunchTemplateId();
+        } catch (Exception e) {
+            log.error("describeLaunchTemplateId error. launchTemplateName: {}", launchTemplateName, e);
+        }
+        return null;
+    }
+
+    /**
+     * @return 启动模板ID, 失败时返回null
+     */
+    public String createLaunchTemplate(CreateLaunchTemplateRequest request) {
+        try {
+            request.setSysRegionId(regionNo);
+            CreateLaunchTemplateResponse acsResponse = guard.invoke(client, request);
+            log.info("createLaunchTemplate success. name: {} launchTemplateId: {}", request.getLaunchTemplateName(),
+                    acsResponse.getLaunchTemplateId());
+            return acsResponse.getLaunchTemplateId();
+        } catch (Exception e) {
+            log.error("createLaunchTemplate error. request: {}", JSON.toJSONString(request), e);
+        }
+        return null;
+    }
+
+    /**
+     * @return 新版本号, 失败时返回null
+     */
+    public Long createLaunchTemplateVersion(CreateLaunchTemplateVersionRequest request) {
+        try {
+            request.setSysRegionId(regionNo);
+            CreateLaunchTemplateVersionResponse acsResponse = guard.invoke(client, request);
+            log.info("createLaunchTemplateVersion success. launchTemplateId: {} version: {}",
+                    request.getLaunchTemplateId(), acsResponse.getLaunchTemplateVersionNumber());
+            return acsResponse.getLaunchTemplateVersionNumber();
+        } catch (Exception e) {
+            log.error("createLaunchTemplateVersion error. request: {}", JSON.toJSONString(request), e);
+        }
+        return null;
+    }
+
+    /**
+     * 创建云助手命令
+     *
+     * @param commandContent base64编码的shell脚本, 其中的{{参数名}}在执行时替换为{@link #invokeCommand}传入的参数
+     * @return 命令ID, 失败时返回null
+     */
+    public String createCommand(String name, String commandContent, long timeoutSeconds) {
+        try {
+            CreateCommandRequest request = new CreateCommandRequest();
+            request.setSysRegionId(regionNo);
+            request.setName(name);
+            request.setType("RunShellScript");
+            request.setCommandContent(commandContent);
+            request.setTimeout(timeoutSeconds);
+            request.putQueryParameter("EnableParameter", true);
+            CreateCommandResponse acsResponse = guard.invoke(client, request);
+            log.info("createCommand success. name: {} commandId: {}", name, acsResponse.getCommandId());
+            return acsResponse.getCommandId();
+        } catch (Exception e) {
+            log.error("createCommand error. name: {}", name, e);
+        }
+        return null;
+    }
+
+    public boolean deleteCommand(String commandId) {
+        try {
+            DeleteCommandRequest request = new DeleteCommandRequest();
+            request.setSysRegionId(regionNo);
+            request.setCommandId(commandId);
+            guard.invoke(client, request);
+            return true;
+        } catch (Exception e) {
+            log.error("deleteCommand error. commandId: {}", commandId, e);
+        }
+        return false;
+    }
+
+    /**
+     * 在一个实例上执行云助手命令
+     *
+     * @param parameters 替换命令中{{参数名}}的参数, 只对本次执行可见
+     * @return 执行ID, 失败时返回null
+     */
+    public String invokeCommand(String commandId, String instanceId, Map<String, String> parameters) {
+        try {
+            InvokeCommandRequest request = new InvokeCommandRequest();
+            request.setSysRegionId(regionNo);
+            request.setCommandId(commandId);
+            request.setInstanceIds(Lists.newArrayList(instanceId));
+            request.putQueryParameter("Parameters", JSON.toJSONString(parameters));
+            InvokeCommandResponse acsResponse = guard.invoke(client, request);
+            log.info("invokeCommand success. commandId: {} instanceId: {} invokeId: {}", commandId, instanceId,
+                    acsResponse.getInvokeId());
+            return acsResponse.getInvokeId();
+        } catch (Exception e) {
+            // 参数中可能包含secret, 不打印
+            log.error("invokeCommand error. commandId: {} instanceId: {}", commandId, instanceId, e);
+        }
+        return null;
+    }
+
+    /**
+     * 查询一个命令的所有执行在各实例上的结果
+     *
+     * @return key为实例ID, value为执行状态(Running/Finished/Failed/Stopped), 查询失败时返回空map
+     */
+    public Map<String, String> describeInvocationResults(String commandId) {
+        Map<String, String> results = Maps.newHashMap();
+        try {
+            int pageNumber = 1;
+            while (true) {
+                DescribeInvocationResultsRequest request = new DescribeInvocationResultsRequest();
+                request.setSysRegionId(regionNo);
+                request.setCommandId(commandId);
+                request.setPageSize(50L);
+                request.setPageNumber((long)pageNumber);
+                DescribeInvocationResultsResponse acsResponse = guard.invoke(client, request);
+                DescribeInvocationResultsResponse.Invocation invocation = acsResponse.getInvocation();
+                if (null == invocation || CollectionUtils.isEmpty(invocation.getInvocationResults())) {
+                    break;
+                }
+                for (DescribeInvocationResultsResponse.Invocation.InvocationResult result
+                        : invocation.getInvocationResults()) {
+                    String status = result.getInvokeRecordStatus();
+                    // 脚本以非0退出码结束时也视为失败
+                    if ("Finished".equals(status) && null != result.getExitCode() && result.getExitCode() != 0) {
+                        status = "Failed";
+                    }
+                    results.put(result.getInstanceId(), status);
+                }
+                if (null == invocation.getTotalCount() || results.size() >= invocation.getTotalCount()) {
+                    break;
+                }
+                pageNumber++;
+            }
+        } catch (Exception e) {
+            log.error("describeInvocationResults error. commandId: {}", commandId, e);
+            return Maps.newHashMap();
+        }
+        return results;
+    }
+
     public List<String> runInstances(RunInstancesRequest request) {
         try {
             List<RunInstancesRequest.Tag> tags = Lists.newArrayList();
+            if (null != request.getTags()) {
+                tags.addAll(request.getTags());
+            }
             RunInstancesRequest.Tag tag = new RunInstancesRequest.Tag();
             tag.setKey("CreatedFrom");
             tag.setValue("jenkins-plugin");
             tags.add(tag);
             request.setTags(tags);
             request.setAcceptFormat(FormatType.JSON);
-            request.setInstanceChargeType("PostPaid");
-            request.setSpotStrategy("SpotAsPriceGo");
-            request.setIoOptimized("optimized");
+            // 使用启动模板时, 付费方式和出价策略由启动模板决定
+            if (StringUtils.isBlank(request.getLaunchTemplateId())) {
+                request.setInstanceChargeType("PostPaid");
+                if (StringUtils.isBlank(request.getSpotStrategy())) {
+                    request.setSpotStrategy("SpotAsPriceGo");
+                }
+                request.setIoOptimized("optimized");
+            }
 
-            RunInstancesResponse acsResponse = client.getAcsResponse(request);
+            RunInstancesResponse acsResponse = guard.invoke(client, request);
             List<String> instanceIdSets = acsResponse.getInstanceIdSets();
             log.info("runInstances success. instanceIdSets: {}", JSON.toJSONString(instanceIdSets));
             return instanceIdSets;
@@ -424,7 +968,7 @@ public class AlibabaEcsClient {
         try {
             AllocatePublicIpAddressRequest ipRequest = new AllocatePublicIpAddressRequest();
             ipRequest.setInstanceId(instanceId);
-            AllocatePublicIpAddressResponse acsResponse = client.getAcsResponse(ipRequest);
+            AllocatePublicIpAddressResponse acsResponse = guard.invoke(client, ipRequest);
             String ipAddress = acsResponse.getIpAddress();
             log.info("allocatePublicIp success. instanceId: {} ipAddress: {}", instanceId, ipAddress);
             return ipAddress;
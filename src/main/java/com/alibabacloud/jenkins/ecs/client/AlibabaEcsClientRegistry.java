@@ -0,0 +1,127 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.aliyuncs.auth.AlibabaCloudCredentials;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * 按(AccessKey, 地域)共享的{@link AlibabaEcsClient}.
+ * <p>
+ * 每个client持有自己的http连接池, 同一组AccessKey和地域只创建一个client, 供cloud和配置页面的各个doFill方法共用.
+ * cloud通过{@link #bind(String, AlibabaEcsClient)}声明自己正在使用的client, AccessKey轮换后cloud绑定到新的client,
+ * 没有cloud使用且空闲的client被关闭.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsClientRegistry {
+    /**
+     * 没有cloud使用的client, 空闲超过该时间后关闭
+     */
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final AlibabaEcsClientRegistry INSTANCE = new AlibabaEcsClientRegistry();
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    public static AlibabaEcsClientRegistry get() {
+        return INSTANCE;
+    }
+
+    private static final class Key {
+        private final String accessKeyId;
+        private final String secretHash;
+        private final String region;
+
+        private Key(AlibabaCloudCredentials credentials, String region) {
+            this.accessKeyId = credentials.getAccessKeyId();
+            // 不在内存中额外保存明文secret
+            this.secretHash = DigestUtils.sha256Hex(String.valueOf(credentials.getAccessKeySecret()));
+            this.region = region;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)o;
+            return Objects.equals(accessKeyId, key.accessKeyId) && Objects.equals(secretHash, key.secretHash)
+                && Objects.equals(region, key.region);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(accessKeyId, secretHash, region);
+        }
+    }
+
+    private static final class Entry {
+        private final AlibabaEcsClient client;
+        private final Set<String> owners = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Entry(AlibabaEcsClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * @return 共享的client, 不存在时创建
+     */
+    public AlibabaEcsClient getClient(AlibabaCloudCredentials credentials, String region) {
+        Entry entry = entries.computeIfAbsent(new Key(credentials, region),
+            key -> new Entry(new AlibabaEcsClient(credentials, region)));
+        entry.lastUsed = System.currentTimeMillis();
+        sweep();
+        return entry.client;
+    }
+
+    /**
+     * owner改为使用client, 之前使用的client不再被owner引用
+     */
+    public void bind(String owner, AlibabaEcsClient client) {
+        for (Entry entry : entries.values()) {
+            if (entry.client == client) {
+                entry.owners.add(owner);
+            } else {
+                entry.owners.remove(owner);
+            }
+        }
+        sweep();
+    }
+
+    /**
+     * 释放不在owners中的使用者, 例如已经删除的cloud
+     */
+    public void retainOwners(Collection<String> owners) {
+        for (Entry entry : entries.values()) {
+            entry.owners.retainAll(owners);
+        }
+        sweep();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.owners.isEmpty() && now - entry.lastUsed > IDLE_MILLIS) {
+                iterator.remove();
+                log.info("shutdown idle AlibabaEcsClient. regionNo: {}", entry.client.getRegionNo());
+                entry.client.shutdown();
+            }
+        }
+    }
+}
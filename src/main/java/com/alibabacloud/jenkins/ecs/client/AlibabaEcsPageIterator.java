@@ -0,0 +1,170 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsPageException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 按页懒加载Describe*结果的迭代器.
+ * <p>
+ * 调用方处理当前页时, 后续最多lookAhead页已经在后台查询, 全量遍历时各页的查询和处理流水执行.
+ * 某一页不足pageSize条时结束, 之后预取的页被取消. 只需要前几条结果的调用方提前{@link #close()}即可,
+ * 不会查询剩余的页. 某一页查询失败时取消预取, hasNext和next抛出{@link AlibabaEcsPageException},
+ * 调用方不会把不完整的结果当作全部结果.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsPageIterator<T> implements Iterator<T>, AutoCloseable {
+    private static final int MAX_PREFETCH_THREADS = 16;
+
+    /**
+     * 所有迭代器共用的预取线程, 线程用满时由调用方线程直接查询
+     */
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(0, MAX_PREFETCH_THREADS,
+        60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new NamingThreadFactory(new DaemonThreadFactory(), "AlibabaEcsPageIterator"),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+
+    public interface PageLoader<T> {
+        /**
+         * @param pageNumber 从1开始
+         * @return 该页的结果, 可以为null
+         */
+        List<T> load(int pageNumber, int pageSize) throws Exception;
+    }
+
+    private final String operation;
+    private final int pageSize;
+    private final int lookAhead;
+    private final PageLoader<T> loader;
+
+    private final Deque<Future<List<T>>> pages = new ArrayDeque<>();
+    private int nextPageNumber = 1;
+    private boolean lastPageLoaded;
+    private Iterator<T> current = Collections.emptyIterator();
+    private AlibabaEcsPageException failure;
+
+    /**
+     * @param lookAhead 处理当前页时预取的页数, 为0时在调用方线程中逐页查询
+     */
+    public AlibabaEcsPageIterator(String operation, int pageSize, int lookAhead, PageLoader<T> loader) {
+        if (pageSize <= 0 || lookAhead < 0) {
+            throw new IllegalArgumentException("illegal pageSize: " + pageSize + " lookAhead: " + lookAhead);
+        }
+        this.operation = operation;
+        this.pageSize = pageSize;
+        this.lookAhead = lookAhead;
+        this.loader = loader;
+    }
+
+    /**
+     * @throws AlibabaEcsPageException 某一页查询失败, 之后的调用都抛出同一个异常
+     */
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (null != failure) {
+                throw failure;
+            }
+            if (lastPageLoaded) {
+                return false;
+            }
+            current = nextPage().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * @return 是否有某一页查询失败
+     */
+    public boolean isFailed() {
+        return null != failure;
+    }
+
+    /**
+     * 提前结束遍历, 取消尚未完成的预取
+     */
+    @Override
+    public void close() {
+        lastPageLoaded = true;
+        current = Collections.emptyIterator();
+        for (Future<List<T>> page : pages) {
+            page.cancel(true);
+        }
+        pages.clear();
+    }
+
+    /**
+     * @return 顺序流, 流关闭或短路操作结束后不再查询后续的页
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+            .onClose(this::close);
+    }
+
+    private List<T> nextPage() {
+        if (pages.isEmpty()) {
+            schedule();
+        }
+        int pageNumber = nextPageNumber - pages.size();
+        List<T> page;
+        try {
+            page = pages.poll().get();
+        } catch (ExecutionException e) {
+            log.error("{} error. pageNumber: {}", operation, pageNumber, e.getCause());
+            close();
+            failure = new AlibabaEcsPageException(operation + " error. pageNumber: " + pageNumber, e.getCause());
+            return Collections.emptyList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            failure = new AlibabaEcsPageException(operation + " interrupted. pageNumber: " + pageNumber, e);
+            return Collections.emptyList();
+        }
+        if (null == page || page.size() < pageSize) {
+            close();
+            return null == page ? Collections.<T>emptyList() : page;
+        }
+        while (pages.size() < lookAhead) {
+            schedule();
+        }
+        return page;
+    }
+
+    private void schedule() {
+        int pageNumber = nextPageNumber++;
+        FutureTask<List<T>> task = new FutureTask<>(() -> loader.load(pageNumber, pageSize));
+        pages.add(task);
+        if (lookAhead == 0) {
+            task.run();
+        } else {
+            PREFETCH_EXECUTOR.execute(task);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.base.Throwables;
+import hudson.model.Computer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ECS元数据(地域、镜像、VPC、交换机等)查询结果的缓存.
+ * <p>
+ * 每个{@link AlibabaEcsClient}一个, 即按(AccessKey, 地域, 查询)缓存. 缓存未过期时直接返回;
+ * 过期不久的结果先返回旧值, 同时在后台刷新; 相同查询同时只有一个请求, 其他调用方等待该请求的结果,
+ * 可以限制等待时间, 超时的查询在后台完成后写入缓存.
+ * 只缓存查询成功的结果, 查询失败时抛出异常, 不缓存, 后台刷新失败时保留旧值. 条目数超过上限时淘汰最久未访问的查询.
+ * </p>
+ */
+@Slf4j
+public class AlibabaEcsResponseCache {
+    static final int MAX_ENTRIES = 256;
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * 过期后仍可返回旧值的时间
+     */
+    static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(55);
+
+    public interface Loader<T> {
+        /**
+         * @return 完整的查询结果
+         * @throws ClientException 查询失败, 包括分页查询中任意一页失败
+         */
+        T load() throws ClientException;
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final LongSupplier clock;
+    private final Executor refresher;
+
+    private static final class Entry {
+        private Object value;
+        private long loadedAt;
+        private boolean loaded;
+        private CompletableFuture<Object> loading;
+    }
+
+    public AlibabaEcsResponseCache() {
+        this(System::currentTimeMillis, task -> Computer.threadPoolForRemoting.submit(task));
+    }
+
+    /**
+     * @param clock     当前时间, 单位毫秒
+     * @param refresher 执行后台刷新
+     */
+    AlibabaEcsResponseCache(LongSupplier clock, Executor refresher) {
+        this.clock = clock;
+        this.refresher = refresher;
+    }
+
+    static final String LOAD_TIMEOUT_CODE = "SDK.CacheLoadTimeout";
+
+    /**
+     * @param query  查询及其参数, 相同的query返回相同的结果
+     * @param loader 实际的查询
+     * @throws ClientException 没有可用的缓存且查询失败
+     */
+    public <T> T get(String query, Loader<T> loader) throws ClientException {
+        return get(query, loader, 0L);
+    }
+
+    /**
+     * 没有可用的缓存时最多等待waitMillis, 超时后查询在后台继续执行并写入缓存, 下次调用可以直接取得结果
+     *
+     * @param waitMillis 不大于0时在当前线程查询并一直等待
+     * @throws ClientException 没有可用的缓存且查询失败或等待超时
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String query, Loader<T> loader, long waitMillis) throws ClientException {
+        Entry entry;
+        CompletableFuture<Object> loading;
+        boolean owner = false;
+        Object stale = null;
+        boolean hasStale = false;
+        synchronized (this) {
+            entry = entries.get(query);
+            if (null == entry) {
+                entry = new Entry();
+                entries.put(query, entry);
+            }
+            long age = clock.getAsLong() - entry.loadedAt;
+            if (entry.loaded && age < TTL_MILLIS) {
+                return (T)entry.value;
+            }
+            if (null == entry.loading) {
+                entry.loading = new CompletableFuture<>();
+                owner = true;
+            }
+            loading = entry.loading;
+            if (entry.loaded && age < TTL_MILLIS + STALE_MILLIS) {
+                stale = entry.value;
+                hasStale = true;
+            }
+        }
+        if (hasStale) {
+            if (owner) {
+                Entry refreshing = entry;
+                refresher.execute(() -> load(query, refreshing, loader, loading));
+            }
+            return (T)stale;
+        }
+        if (owner) {
+            if (waitMillis > 0) {
+                Entry cold = entry;
+                refresher.execute(() -> load(query, cold, loader, loading));
+            } else {
+                load(query, entry, loader, loading);
+            }
+        }
+        try {
+            return (T)(waitMillis > 0 ? loading.get(waitMillis, TimeUnit.MILLISECONDS) : loading.get());
+        } catch (TimeoutException e) {
+            throw new ClientException(LOAD_TIMEOUT_CODE, query + " still loading after " + waitMillis + "ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ClientException) {
+                throw (ClientException)e.getCause();
+            }
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * 使以queryPrefix开头的查询失效, 例如创建镜像后使"describeImages"开头的查询失效
+     */
+    public synchronized void invalidate(String queryPrefix) {
+        entries.keySet().removeIf(query -> query.startsWith(queryPrefix));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void load(String query, Entry entry, Loader<?> loader, CompletableFuture<Object> loading) {
+        try {
+            Object value = loader.load();
+            synchronized (this) {
+                entry.value = value;
+                entry.loadedAt = clock.getAsLong();
+                entry.loaded = true;
+                entry.loading = null;
+            }
+            loading.complete(value);
+        } catch (Throwable e) {
+            log.error("load {} error.", query, e);
+            synchronized (this) {
+                entry.loading = null;
+            }
+            loading.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.alibabacloud.jenkins.ecs.exception;
+
+/**
+ * 逐页查询时某一页查询失败, 已经遍历到的结果不完整
+ */
+public class AlibabaEcsPageException extends RuntimeException {
+    public AlibabaEcsPageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -3,6 +3,7 @@ package com.alibabacloud.jenkins.ecs.util;
 import com.aliyuncs.auth.AlibabaCloudCredentials;
 import hudson.Extension;
 import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClient;
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsClientRegistry;
 
 /**
  * Created by kunlun.ykl on 2020/8/26.
@@ -12,6 +13,6 @@ public class AlibabaEcsFactoryImpl implements AlibabaEcsFactory {
 
     @Override
     public AlibabaEcsClient connect(AlibabaCloudCredentials credentials, String regionNo) {
-        return new AlibabaEcsClient(credentials, regionNo);
+        return AlibabaEcsClientRegistry.get().getClient(credentials, regionNo);
     }
 }
@@ -0,0 +1,86 @@
+package com.alibabacloud.jenkins.ecs.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 构造实例的UserData脚本.
+ * <p>
+ * 实例首次启动时由cloud-init以root身份执行. 写入的文件内容不经过shell展开, 可以放心包含$等字符.
+ * </p>
+ */
+public class UserDataBuilder {
+    /**
+     * UserData编码前的最大长度
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private final StringBuilder script = new StringBuilder("#!/bin/sh\n");
+
+    /**
+     * 追加一行命令
+     */
+    public UserDataBuilder line(String command) {
+        script.append(command).append('\n');
+        return this;
+    }
+
+    /**
+     * 写入文件
+     *
+     * @param mode 八进制权限, 例如0600
+     */
+    public UserDataBuilder file(String path, String content, String mode) {
+        String delimiter = "JENKINS_ECS_EOF";
+        while (content.contains(delimiter)) {
+            delimiter = delimiter + "_";
+        }
+        script.append("mkdir -p \"$(dirname ").append(quote(path)).append(")\"\n");
+        script.append("cat > ").append(quote(path)).append(" <<'").append(delimiter).append("'\n");
+        script.append(content);
+        if (!content.endsWith("\n")) {
+            script.append('\n');
+        }
+        script.append(delimiter).append('\n');
+        script.append("chmod ").append(mode).append(' ').append(quote(path)).append('\n');
+        return this;
+    }
+
+    /**
+     * 以base64写入文件, 文件内容不以明文出现在脚本中. 用于云助手的带参数命令, 避免内容中的{{}}被当作参数替换
+     *
+     * @param mode 八进制权限, 例如0600
+     */
+    public UserDataBuilder encodedFile(String path, String content, String mode) {
+        String encoded = Base64.getMimeEncoder(76, new byte[] {'\n'})
+            .encodeToString(content.getBytes(StandardCharsets.UTF_8));
+        script.append("mkdir -p \"$(dirname ").append(quote(path)).append(")\"\n");
+        script.append("base64 -d > ").append(quote(path)).append(" <<'JENKINS_ECS_EOF'\n");
+        script.append(encoded).append('\n');
+        script.append("JENKINS_ECS_EOF\n");
+        script.append("chmod ").append(mode).append(' ').append(quote(path)).append('\n');
+        return this;
+    }
+
+    public String build() {
+        return script.toString();
+    }
+
+    /**
+     * @return base64编码后的脚本, 可以直接用于RunInstances的UserData参数
+     */
+    public String encode() {
+        byte[] bytes = build().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_SIZE) {
+            throw new IllegalStateException("userData too large. size: " + bytes.length + " max: " + MAX_SIZE);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * 用单引号包裹, 作为shell中的一个参数
+     */
+    public static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
@@ -2,6 +2,7 @@ package com.alibabacloud.jenkins.ecs;
 
 import com.alibabacloud.credentials.plugin.auth.AlibabaCredentials;
 import com.alibabacloud.credentials.plugin.util.CredentialsHelper;
+import com.google.common.collect.Lists;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -12,7 +13,11 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.powermock.api.mockito.PowerMockito.when;
 
 /**
@@ -40,4 +45,46 @@ public class AlibabaCloudTest {
             "test-sg", "cn-beijing-a", "test-vsw", "ecs.c5.large", 1, "", "", "", "", 20, false);
         assertNotNull(cloud);
     }
+
+    @Test
+    public void canProvisionTest() {
+        String credentialsId = "sampleCredentialsId";
+        AlibabaCredentials credentials = new AlibabaCredentials("ak",
+            "sk");
+        PowerMockito.mockStatic(CredentialsHelper.class);
+        when(CredentialsHelper.getCredentials(credentialsId)).thenReturn(credentials);
+
+        AlibabaCloud cloud = new AlibabaCloud("testCloud", credentialsId, null, "cn-beijing", "centos", "test-vpc",
+            "test-sg", "cn-beijing-a", "test-vsw", "ecs.c5.large", 1, "", "ecs linux", "", "", 20, false);
+        assertTrue(cloud.canProvision(null));
+        assertTrue(cloud.canProvision(r.jenkins.getLabel("ecs")));
+        assertTrue(cloud.canProvision(r.jenkins.getLabel("ecs && linux")));
+        assertFalse(cloud.canProvision(r.jenkins.getLabel("windows")));
+    }
+
+    @Test
+    public void additionalTemplatesTest() {
+        String credentialsId = "sampleCredentialsId";
+        AlibabaCredentials credentials = new AlibabaCredentials("ak",
+            "sk");
+        PowerMockito.mockStatic(CredentialsHelper.class);
+        when(CredentialsHelper.getCredentials(credentialsId)).thenReturn(credentials);
+
+        AlibabaCloud cloud = new AlibabaCloud("testCloud", credentialsId, null, "cn-beijing", "centos", "test-vpc",
+            "test-sg", "cn-beijing-a", "test-vsw", "ecs.c5.large", 1, "", "ecs small", "", "", 20, false);
+        AlibabaEcsFollowerTemplate large = new AlibabaEcsFollowerTemplate("cn-beijing-a", "test-vsw",
+            "ecs.c5.2xlarge", 0, "", "ecs large", "", "", 40, false);
+        AlibabaEcsFollowerTemplate highMem = new AlibabaEcsFollowerTemplate("cn-beijing-b", "test-vsw-b",
+            "ecs.r5.2xlarge", 0, "", "ecs highmem", "", "", 40, false);
+        cloud.setAdditionalTemplates(Lists.newArrayList(large, highMem));
+
+        assertEquals(3, cloud.getTemplates().size());
+        assertEquals(2, cloud.getAdditionalTemplates().size());
+        assertEquals("cn-beijing-a-ecs.c5.large", cloud.getTemplate(r.jenkins.getLabel("ecs")).getTemplateId());
+        assertEquals(large, cloud.getTemplate(r.jenkins.getLabel("large")));
+        assertEquals(highMem, cloud.getTemplate(r.jenkins.getLabel("ecs && highmem")));
+        assertEquals(highMem, cloud.getTemplate("cn-beijing-b-ecs.r5.2xlarge"));
+        assertEquals("/root", highMem.getRemoteFs());
+        assertNull(cloud.getTemplate(r.jenkins.getLabel("small && large")));
+    }
 }
@@ -0,0 +1,39 @@
+package com.alibabacloud.jenkins.ecs;
+
+import com.alibabacloud.jenkins.ecs.AlibabaEcsFollowerIndex.State;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AlibabaEcsFollowerIndexTest {
+
+    @Test
+    public void countTest() {
+        AlibabaEcsFollowerIndex index = new AlibabaEcsFollowerIndex();
+        String templateId = "cn-beijing-a-ecs.c5.large";
+        index.reservePending(templateId, 3);
+        assertEquals(3, index.countAlive(templateId));
+
+        index.update("node-1", templateId, "i-1", State.LAUNCHING);
+        index.update("node-2", templateId, "i-2", State.LAUNCHING);
+        index.releasePending(templateId, 2);
+        assertEquals(3, index.countAlive(templateId));
+        assertEquals(2, index.count(templateId, State.LAUNCHING));
+
+        index.update("node-1", templateId, "i-1", State.ONLINE);
+        index.update("node-1", templateId, "i-1", State.ONLINE);
+        assertEquals(1, index.count(templateId, State.ONLINE));
+        assertEquals(1, index.count(templateId, State.LAUNCHING));
+
+        index.update("node-2", templateId, "i-2", State.TERMINATING);
+        index.update("node-2", templateId, "i-2", State.ONLINE);
+        assertEquals(2, index.countAlive(templateId));
+        assertEquals(1, index.count(templateId, State.TERMINATING));
+
+        index.remove("node-2");
+        index.remove("node-2");
+        assertEquals(0, index.count(templateId, State.TERMINATING));
+        assertEquals(1, index.getInstanceIds().size());
+        assertEquals(0, index.countAlive("other-template"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsAsyncClient;
+import com.google.common.collect.Lists;
+import hudson.model.Node;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AlibabaEcsProvisionPipelineTest {
+    private static final String TEMPLATE_ID = "cn-beijing-a-ecs.c5.large";
+
+    private AlibabaEcsFollowerTemplate template;
+    private AlibabaEcsTerminationQueue terminationQueue;
+    private AlibabaEcsFollowerIndex followerIndex;
+
+    @Before
+    public void setUp() {
+        AlibabaCloud cloud = mock(AlibabaCloud.class);
+        template = mock(AlibabaEcsFollowerTemplate.class);
+        terminationQueue = mock(AlibabaEcsTerminationQueue.class);
+        followerIndex = new AlibabaEcsFollowerIndex();
+        when(template.getParent()).thenReturn(cloud);
+        when(template.getTemplateId()).thenReturn(TEMPLATE_ID);
+        when(cloud.getFollowerIndex()).thenReturn(followerIndex);
+        when(cloud.getTerminationQueue()).thenReturn(terminationQueue);
+        when(cloud.getAsyncClient()).thenReturn(new AlibabaEcsAsyncClient("test", () -> null));
+    }
+
+    @Test
+    public void registerFailureTerminatesInstancesTest() throws Exception {
+        List<String> instanceIds = Lists.newArrayList("i-1", "i-2", "i-3");
+        when(template.provisionInstances(3)).thenReturn(instanceIds);
+        when(template.createFollowers(instanceIds)).thenReturn(followers(instanceIds));
+
+        // 第二个节点注册失败, 第一个节点已加入Jenkins
+        List<String> registered = Lists.newArrayList();
+        AlibabaEcsProvisionPipeline pipeline = new AlibabaEcsProvisionPipeline(Runnable::run, follower -> {
+            if (registered.size() == 1) {
+                throw new IOException("addNode failed");
+            }
+            registered.add(follower.getEcsInstanceId());
+        });
+        awaitFailure(pipeline.submit(template, 3));
+
+        assertEquals(Lists.newArrayList("i-1"), registered);
+        verify(terminationQueue).terminateInstances(Lists.newArrayList("i-2", "i-3"));
+        assertEquals(0, followerIndex.countAlive(TEMPLATE_ID));
+    }
+
+    @Test
+    public void hydrateFailureTerminatesInstancesTest() throws Exception {
+        List<String> instanceIds = Lists.newArrayList("i-1", "i-2");
+        when(template.provisionInstances(2)).thenReturn(instanceIds);
+        when(template.createFollowers(instanceIds)).thenThrow(new IllegalStateException("describe failed"));
+
+        AlibabaEcsProvisionPipeline pipeline = new AlibabaEcsProvisionPipeline(Runnable::run, follower -> {
+            fail("no follower should be registered");
+        });
+        awaitFailure(pipeline.submit(template, 2));
+
+        verify(terminationQueue).terminateInstances(instanceIds);
+        assertEquals(0, followerIndex.countAlive(TEMPLATE_ID));
+    }
+
+    @Test
+    public void createFailureTerminatesNothingTest() throws Exception {
+        when(template.provisionInstances(2)).thenThrow(new IllegalStateException("no stock"));
+
+        AlibabaEcsProvisionPipeline pipeline = new AlibabaEcsProvisionPipeline(Runnable::run, follower -> {
+            fail("no follower should be registered");
+        });
+        awaitFailure(pipeline.submit(template, 2));
+
+        verify(terminationQueue).terminateInstances(Lists.newArrayList());
+        verify(template, never()).createFollowers(any());
+        assertEquals(0, followerIndex.countAlive(TEMPLATE_ID));
+    }
+
+    private static List<AlibabaEcsSpotFollower> followers(List<String> instanceIds) {
+        List<AlibabaEcsSpotFollower> followers = Lists.newArrayList();
+        for (String instanceId : instanceIds) {
+            AlibabaEcsSpotFollower follower = mock(AlibabaEcsSpotFollower.class);
+            when(follower.getEcsInstanceId()).thenReturn(instanceId);
+            followers.add(follower);
+        }
+        return followers;
+    }
+
+    private static void awaitFailure(List<CompletableFuture<Node>> futures) throws Exception {
+        for (CompletableFuture<Node> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("provision should fail");
+            } catch (ExecutionException e) {
+                assertTrue(null != e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AlibabaEcsSpotTerminationMonitorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkTaskTest() throws Exception {
+        // 用本地文件代替实例元数据服务
+        File metadata = new File(folder.getRoot(), "termination-time");
+        AlibabaEcsSpotTerminationMonitor.CheckTask task = new AlibabaEcsSpotTerminationMonitor.CheckTask(
+            metadata.toURI().toURL().toString());
+        assertNull(task.call());
+
+        FileUtils.writeStringToFile(metadata, "2026-10-17T08:22:00Z\n", StandardCharsets.UTF_8);
+        assertEquals("2026-10-17T08:22:00Z", task.call());
+    }
+}
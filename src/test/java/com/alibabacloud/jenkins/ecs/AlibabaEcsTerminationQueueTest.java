@@ -0,0 +1,201 @@
+package com.alibabacloud.jenkins.ecs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.alibabacloud.jenkins.ecs.client.AlibabaEcsAsyncClient;
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AlibabaEcsTerminationQueueTest {
+    private static class ScheduledTask {
+        private final Runnable task;
+        private final long delayMillis;
+
+        private ScheduledTask(Runnable task, long delayMillis) {
+            this.task = task;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    private List<ScheduledTask> scheduled;
+    private List<List<String>> deleteCalls;
+    private Function<List<String>, CompletableFuture<Void>> deleteResult;
+    private Map<String, CompletableFuture<String>> confirmations;
+    private List<AlibabaEcsSpotFollower> removed;
+    private AlibabaEcsInstanceReconciler reconciler;
+    private AlibabaEcsTerminationQueue queue;
+
+    @Before
+    public void setUp() {
+        scheduled = Lists.newArrayList();
+        deleteCalls = Lists.newArrayList();
+        deleteResult = instanceIds -> CompletableFuture.completedFuture(null);
+        confirmations = Maps.newHashMap();
+        removed = Lists.newArrayList();
+
+        AlibabaCloud cloud = mock(AlibabaCloud.class);
+        AlibabaEcsAsyncClient asyncClient = mock(AlibabaEcsAsyncClient.class);
+        reconciler = mock(AlibabaEcsInstanceReconciler.class);
+        when(cloud.getAsyncClient()).thenReturn(asyncClient);
+        when(cloud.getInstanceReconciler()).thenReturn(reconciler);
+        when(asyncClient.deleteInstances(anyList(), anyBoolean())).thenAnswer(invocation -> {
+            List<String> instanceIds = Lists.newArrayList(invocation.<List<String>>getArgument(0));
+            deleteCalls.add(instanceIds);
+            return deleteResult.apply(instanceIds);
+        });
+        when(reconciler.awaitStatus(anyString(), any())).thenAnswer(
+            invocation -> confirmations.computeIfAbsent(invocation.getArgument(0), id -> new CompletableFuture<>()));
+
+        queue = new AlibabaEcsTerminationQueue(cloud,
+            (task, delay, unit) -> scheduled.add(new ScheduledTask(task, unit.toMillis(delay))), removed::addAll);
+    }
+
+    @Test
+    public void batchingTest() {
+        int count = AlibabaEcsTerminationQueue.MAX_BATCH_SIZE + 50;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(follower("i-" + i));
+        }
+        // 合并为一次延迟的flush
+        assertEquals(1, scheduled.size());
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+
+        assertEquals(2, deleteCalls.size());
+        assertEquals(AlibabaEcsTerminationQueue.MAX_BATCH_SIZE, deleteCalls.get(0).size());
+        assertEquals(50, deleteCalls.get(1).size());
+        assertEquals(count, confirmations.size());
+    }
+
+    @Test
+    public void removalAfterConfirmationTest() {
+        AlibabaEcsSpotFollower first = follower("i-1");
+        AlibabaEcsSpotFollower second = follower("i-2");
+        queue.enqueue(first);
+        queue.enqueue(second);
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        // 确认释放前不移除节点
+        assertTrue(removed.isEmpty());
+
+        confirmations.get("i-1").complete(AlibabaEcsInstanceReconciler.STATUS_UNKNOWN);
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        assertEquals(Lists.newArrayList(first), removed);
+
+        // 超时未确认的实例重新释放
+        runDue(TimeUnit.SECONDS.toMillis(AlibabaEcsTerminationQueue.CONFIRM_TIMEOUT_SECONDS));
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        assertEquals(Lists.newArrayList("i-2"), deleteCalls.get(deleteCalls.size() - 1));
+        assertTrue(queue.getOrphanedInstanceIds().isEmpty());
+    }
+
+    @Test
+    public void retryAndAbandonTest() {
+        deleteResult = instanceIds -> failed(new ClientException("InternalError", "internal error"));
+        AlibabaEcsSpotFollower follower = follower("i-1");
+        queue.enqueue(follower);
+        for (int i = 0; i < AlibabaEcsTerminationQueue.MAX_ATTEMPTS; i++) {
+            assertTrue(removed.isEmpty());
+            runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        }
+        assertEquals(AlibabaEcsTerminationQueue.MAX_ATTEMPTS, deleteCalls.size());
+
+        // 多次失败后移除节点, 实例记录为孤儿实例
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        assertEquals(Lists.newArrayList(follower), removed);
+        assertEquals(Sets.newHashSet("i-1"), queue.getOrphanedInstanceIds());
+        verify(reconciler).track("i-1");
+
+        // 孤儿实例定期重试释放, 同步器确认已释放后不再跟踪
+        deleteResult = instanceIds -> CompletableFuture.completedFuture(null);
+        runDue(TimeUnit.MINUTES.toMillis(AlibabaEcsTerminationQueue.ORPHAN_RETRY_MINUTES));
+        assertEquals(Lists.newArrayList("i-1"), deleteCalls.get(deleteCalls.size() - 1));
+        when(reconciler.getStatus("i-1")).thenReturn(AlibabaEcsInstanceReconciler.STATUS_UNKNOWN);
+        runDue(TimeUnit.MINUTES.toMillis(AlibabaEcsTerminationQueue.ORPHAN_RETRY_MINUTES));
+        assertTrue(queue.getOrphanedInstanceIds().isEmpty());
+        verify(reconciler).untrack("i-1");
+    }
+
+    @Test
+    public void releasedInstanceSkippedTest() {
+        when(reconciler.getStatus("i-gone")).thenReturn(AlibabaEcsInstanceReconciler.STATUS_UNKNOWN);
+        AlibabaEcsSpotFollower gone = follower("i-gone");
+        queue.enqueue(gone);
+        queue.enqueue(follower("i-live"));
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+
+        // 已释放的实例不调用DeleteInstances, 直接移除节点
+        assertEquals(1, deleteCalls.size());
+        assertEquals(Lists.newArrayList("i-live"), deleteCalls.get(0));
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        assertEquals(Lists.newArrayList(gone), removed);
+    }
+
+    @Test
+    public void notFoundSplitsBatchTest() {
+        deleteResult = instanceIds -> instanceIds.contains("i-3")
+            ? failed(new ClientException("InvalidInstanceId.NotFound", "instance not found"))
+            : CompletableFuture.completedFuture(null);
+        AlibabaEcsSpotFollower missing = follower("i-3");
+        queue.enqueue(follower("i-1"));
+        queue.enqueue(follower("i-2"));
+        queue.enqueue(missing);
+        queue.enqueue(follower("i-4"));
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+
+        // 其他实例拆分后释放成功, 不计入重试
+        assertEquals(Sets.newHashSet("i-1", "i-2", "i-4"), confirmations.keySet());
+        verify(reconciler, never()).awaitStatus(eq("i-3"), any());
+        runDue(AlibabaEcsTerminationQueue.FLUSH_DELAY_MILLIS);
+        assertEquals(Lists.newArrayList(missing), removed);
+        assertTrue(queue.getOrphanedInstanceIds().isEmpty());
+    }
+
+    private static AlibabaEcsSpotFollower follower(String instanceId) {
+        AlibabaEcsSpotFollower follower = mock(AlibabaEcsSpotFollower.class);
+        when(follower.getEcsInstanceId()).thenReturn(instanceId);
+        when(follower.getNodeName()).thenReturn("node-" + instanceId);
+        return follower;
+    }
+
+    private static CompletableFuture<Void> failed(Throwable e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * 执行延迟为delayMillis的任务, 执行中新加入的任务留到下一次
+     */
+    private void runDue(long delayMillis) {
+        List<ScheduledTask> due = Lists.newArrayList();
+        for (ScheduledTask task : scheduled) {
+            if (task.delayMillis == delayMillis) {
+                due.add(task);
+            }
+        }
+        scheduled.removeAll(due);
+        for (ScheduledTask task : due) {
+            task.task.run();
+        }
+    }
+}
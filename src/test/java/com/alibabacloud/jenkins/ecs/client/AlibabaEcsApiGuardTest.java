@@ -0,0 +1,186 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aliyuncs.IAcsClient;
+import com.aliyuncs.ecs.model.v20140526.DescribeRegionsRequest;
+import com.aliyuncs.ecs.model.v20140526.DescribeRegionsResponse;
+import com.aliyuncs.ecs.model.v20140526.RunInstancesRequest;
+import com.aliyuncs.ecs.model.v20140526.RunInstancesResponse;
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AlibabaEcsApiGuardTest {
+    private IAcsClient client;
+    private AtomicLong now;
+    private AlibabaEcsApiGuard guard;
+
+    @Before
+    public void setUp() {
+        client = mock(IAcsClient.class);
+        now = new AtomicLong(System.currentTimeMillis());
+        guard = new AlibabaEcsApiGuard(now::get);
+    }
+
+    @Test
+    public void retryableCodeTest() throws ClientException {
+        DescribeRegionsResponse response = new DescribeRegionsResponse();
+        when(client.getAcsResponse(any(DescribeRegionsRequest.class)))
+            .thenThrow(new ClientException("Throttling", "throttled"))
+            .thenThrow(new ClientException("ServiceUnavailable", "unavailable"))
+            .thenReturn(response);
+
+        assertSame(response, guard.invoke(client, new DescribeRegionsRequest()));
+        verify(client, times(3)).getAcsResponse(any(DescribeRegionsRequest.class));
+    }
+
+    @Test
+    public void nonRetryableCodeTest() throws ClientException {
+        when(client.getAcsResponse(any(DescribeRegionsRequest.class)))
+            .thenThrow(new ClientException("InvalidParameter", "invalid"));
+
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("non-retryable error should be thrown");
+        } catch (ClientException e) {
+            assertEquals("InvalidParameter", e.getErrCode());
+        }
+        verify(client, times(1)).getAcsResponse(any(DescribeRegionsRequest.class));
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void maxAttemptsTest() throws ClientException {
+        when(client.getAcsResponse(any(DescribeRegionsRequest.class)))
+            .thenThrow(new ClientException("Throttling", "throttled"));
+
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("error should be thrown after max attempts");
+        } catch (ClientException e) {
+            assertEquals("Throttling", e.getErrCode());
+        }
+        verify(client, times(4)).getAcsResponse(any(DescribeRegionsRequest.class));
+        // 限流不计入熔断
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void clientTokenStableAcrossRetriesTest() throws ClientException {
+        List<String> tokens = Lists.newArrayList();
+        when(client.getAcsResponse(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            tokens.add(request.getSysQueryParameters().get("ClientToken"));
+            if (tokens.size() < 3) {
+                throw new ClientException("InternalError", "internal error");
+            }
+            return new RunInstancesResponse();
+        });
+
+        guard.invoke(client, new RunInstancesRequest());
+        assertEquals(3, tokens.size());
+        assertNotNull(tokens.get(0));
+        assertEquals(tokens.get(0), tokens.get(1));
+        assertEquals(tokens.get(0), tokens.get(2));
+
+        // 下一次调用使用新的ClientToken
+        tokens.clear();
+        guard.invoke(client, new RunInstancesRequest());
+        guard.invoke(client, new RunInstancesRequest());
+        assertEquals(2, tokens.size());
+        assertFalse(tokens.get(0).equals(tokens.get(1)));
+    }
+
+    @Test
+    public void circuitOpenTest() throws ClientException {
+        openCircuit();
+
+        // 熔断期间不调用ECS
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("call should be rejected while circuit is open");
+        } catch (ClientException e) {
+            assertEquals(AlibabaEcsApiGuard.CIRCUIT_OPEN_CODE, e.getErrCode());
+        }
+        verify(client, times(5)).getAcsResponse(any(DescribeRegionsRequest.class));
+    }
+
+    @Test
+    public void circuitHalfOpenRecoverTest() throws ClientException {
+        openCircuit();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(31));
+        assertFalse(guard.isCircuitOpen());
+
+        DescribeRegionsResponse response = new DescribeRegionsResponse();
+        doReturn(response).when(client).getAcsResponse(any(DescribeRegionsRequest.class));
+        assertSame(response, guard.invoke(client, new DescribeRegionsRequest()));
+
+        // 恢复后需要重新累计失败次数才会熔断
+        doThrow(new ClientException("InvalidParameter", "invalid")).when(client)
+            .getAcsResponse(any(DescribeRegionsRequest.class));
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("non-retryable error should be thrown");
+        } catch (ClientException e) {
+            assertEquals("InvalidParameter", e.getErrCode());
+        }
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void circuitHalfOpenFailureTest() throws ClientException {
+        openCircuit();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(31));
+
+        // 熔断结束后的第一次调用失败时立即重新熔断, 不再重试
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("call should fail");
+        } catch (ClientException e) {
+            assertEquals(AlibabaEcsApiGuard.CIRCUIT_OPEN_CODE, e.getErrCode());
+        }
+        verify(client, times(6)).getAcsResponse(any(DescribeRegionsRequest.class));
+        assertTrue(guard.isCircuitOpen());
+    }
+
+    /**
+     * 连续5次服务端不可用后熔断
+     */
+    private void openCircuit() throws ClientException {
+        when(client.getAcsResponse(any(DescribeRegionsRequest.class)))
+            .thenThrow(new ClientException("ServiceUnavailable", "unavailable"));
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("call should fail");
+        } catch (ClientException e) {
+            assertEquals("ServiceUnavailable", e.getErrCode());
+        }
+        assertFalse(guard.isCircuitOpen());
+        try {
+            guard.invoke(client, new DescribeRegionsRequest());
+            fail("call should fail");
+        } catch (ClientException e) {
+            assertEquals(AlibabaEcsApiGuard.CIRCUIT_OPEN_CODE, e.getErrCode());
+        }
+        assertTrue(guard.isCircuitOpen());
+        verify(client, times(5)).getAcsResponse(any(DescribeRegionsRequest.class));
+    }
+}
@@ -0,0 +1,144 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.alibabacloud.jenkins.ecs.exception.AlibabaEcsPageException;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AlibabaEcsPageIteratorTest {
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * 返回totalCount条结果的分页查询, 记录被查询的页
+     */
+    private static class StubLoader implements AlibabaEcsPageIterator.PageLoader<Integer> {
+        private final int totalCount;
+        private final Set<Integer> requested = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        StubLoader(int totalCount) {
+            this.totalCount = totalCount;
+        }
+
+        @Override
+        public List<Integer> load(int pageNumber, int pageSize) throws Exception {
+            requested.add(pageNumber);
+            List<Integer> page = Lists.newArrayList();
+            for (int i = (pageNumber - 1) * pageSize; i < Math.min(pageNumber * pageSize, totalCount); i++) {
+                page.add(i);
+            }
+            return page;
+        }
+    }
+
+    @Test
+    public void shortLastPageTest() {
+        for (int lookAhead = 0; lookAhead <= 2; lookAhead++) {
+            StubLoader loader = new StubLoader(2 * PAGE_SIZE + 3);
+            List<Integer> all = Lists.newArrayList(new AlibabaEcsPageIterator<>("test", PAGE_SIZE, lookAhead,
+                loader));
+            assertEquals(2 * PAGE_SIZE + 3, all.size());
+            assertEquals(Integer.valueOf(2 * PAGE_SIZE + 2), all.get(all.size() - 1));
+            // 不足一页时结束, 不查询之后的页
+            assertFalse(loader.requested.contains(4));
+        }
+    }
+
+    @Test
+    public void exactMultipleOfPageSizeTest() {
+        StubLoader loader = new StubLoader(3 * PAGE_SIZE);
+        AlibabaEcsPageIterator<Integer> iterator = new AlibabaEcsPageIterator<>("test", PAGE_SIZE, 1, loader);
+        List<Integer> all = Lists.newArrayList(iterator);
+        assertEquals(3 * PAGE_SIZE, all.size());
+        // 最后一页恰好满页时, 由下一页为空判断结束
+        assertTrue(loader.requested.contains(4));
+        assertFalse(loader.requested.contains(5));
+        assertFalse(iterator.isFailed());
+    }
+
+    @Test
+    public void closeCancelsPrefetchTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Set<Integer> completed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        StubLoader stub = new StubLoader(100 * PAGE_SIZE);
+        AlibabaEcsPageIterator<Integer> iterator = new AlibabaEcsPageIterator<>("test", PAGE_SIZE, 2,
+            (pageNumber, pageSize) -> {
+                if (pageNumber > 1) {
+                    release.await();
+                }
+                List<Integer> page = stub.load(pageNumber, pageSize);
+                completed.add(pageNumber);
+                return page;
+            });
+        assertEquals(Integer.valueOf(0), iterator.next());
+        iterator.close();
+        release.countDown();
+        Thread.sleep(200);
+
+        assertFalse(iterator.hasNext());
+        // 预取的页被中断或未开始, 也不会再调度新的页
+        assertEquals(Collections.singleton(1), completed);
+        for (int pageNumber : stub.requested) {
+            assertTrue(pageNumber <= 3);
+        }
+    }
+
+    @Test
+    public void streamShortCircuitTest() {
+        StubLoader loader = new StubLoader(100 * PAGE_SIZE);
+        AlibabaEcsPageIterator<Integer> iterator = new AlibabaEcsPageIterator<>("test", PAGE_SIZE, 0, loader);
+        assertEquals(Integer.valueOf(PAGE_SIZE + 1), iterator.stream().filter(i -> i > PAGE_SIZE).findFirst().get());
+        assertEquals(2, loader.requested.size());
+    }
+
+    @Test
+    public void midStreamFailureTest() {
+        StubLoader stub = new StubLoader(5 * PAGE_SIZE);
+        AlibabaEcsPageIterator<Integer> iterator = new AlibabaEcsPageIterator<>("test", PAGE_SIZE, 1,
+            (pageNumber, pageSize) -> {
+                if (pageNumber == 2) {
+                    throw new IllegalStateException("page " + pageNumber);
+                }
+                return stub.load(pageNumber, pageSize);
+            });
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals(Integer.valueOf(i), iterator.next());
+        }
+        try {
+            iterator.hasNext();
+            fail("partial result returned as complete");
+        } catch (AlibabaEcsPageException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(iterator.isFailed());
+        // 之后的调用仍然失败, 不会被当作遍历结束
+        try {
+            iterator.next();
+            fail("partial result returned as complete");
+        } catch (AlibabaEcsPageException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(stub.requested.contains(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalPageSizeTest() {
+        new AlibabaEcsPageIterator<>("test", 0, 1, new StubLoader(1));
+    }
+
+    @Test
+    public void emptyResultTest() {
+        StubLoader loader = new StubLoader(0);
+        assertFalse(new AlibabaEcsPageIterator<>("test", PAGE_SIZE, 1, loader).hasNext());
+        assertEquals(Collections.singleton(1), loader.requested);
+    }
+}
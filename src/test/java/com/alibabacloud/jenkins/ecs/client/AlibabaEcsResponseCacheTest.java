@@ -0,0 +1,191 @@
+package com.alibabacloud.jenkins.ecs.client;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aliyuncs.exceptions.ClientException;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AlibabaEcsResponseCacheTest {
+    private AtomicLong now;
+    private List<Runnable> refreshes;
+    private AlibabaEcsResponseCache cache;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong(System.currentTimeMillis());
+        refreshes = Lists.newArrayList();
+        cache = new AlibabaEcsResponseCache(now::get, refreshes::add);
+    }
+
+    @Test
+    public void ttlHitTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals("v1", cache.get("q", () -> "v" + loads.incrementAndGet()));
+        now.addAndGet(AlibabaEcsResponseCache.TTL_MILLIS - 1);
+        assertEquals("v1", cache.get("q", () -> "v" + loads.incrementAndGet()));
+        assertEquals(1, loads.get());
+        assertTrue(refreshes.isEmpty());
+    }
+
+    @Test
+    public void staleWhileRevalidateTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("q", () -> "v" + loads.incrementAndGet());
+        now.addAndGet(AlibabaEcsResponseCache.TTL_MILLIS);
+
+        // 过期后先返回旧值, 只提交一次后台刷新
+        assertEquals("v1", cache.get("q", () -> "v" + loads.incrementAndGet()));
+        assertEquals("v1", cache.get("q", () -> "v" + loads.incrementAndGet()));
+        assertEquals(1, refreshes.size());
+        assertEquals(1, loads.get());
+
+        refreshes.remove(0).run();
+        assertEquals(2, loads.get());
+        assertEquals("v2", cache.get("q", () -> "v" + loads.incrementAndGet()));
+        assertTrue(refreshes.isEmpty());
+    }
+
+    @Test
+    public void staleRefreshFailureTest() throws ClientException {
+        cache.get("q", () -> "v1");
+        now.addAndGet(AlibabaEcsResponseCache.TTL_MILLIS);
+        assertEquals("v1", cache.get("q", () -> {
+            throw new ClientException("Throttling", "throttled");
+        }));
+        refreshes.remove(0).run();
+
+        // 刷新失败时保留旧值, 下次调用重新刷新
+        assertEquals("v1", cache.get("q", () -> "v2"));
+        refreshes.remove(0).run();
+        assertEquals("v2", cache.get("q", () -> "v3"));
+    }
+
+    @Test
+    public void expiredBeyondStaleTest() throws ClientException {
+        cache.get("q", () -> "v1");
+        now.addAndGet(AlibabaEcsResponseCache.TTL_MILLIS + AlibabaEcsResponseCache.STALE_MILLIS);
+        assertEquals("v2", cache.get("q", () -> "v2"));
+        assertTrue(refreshes.isEmpty());
+    }
+
+    @Test
+    public void failureNotCachedTest() throws ClientException {
+        try {
+            cache.get("q", () -> {
+                throw new ClientException("InternalError", "internal error");
+            });
+            fail("load failure should be thrown");
+        } catch (ClientException e) {
+            assertEquals("InternalError", e.getErrCode());
+        }
+        assertEquals("v1", cache.get("q", () -> "v1"));
+    }
+
+    @Test
+    public void emptyResultCachedTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            List<String> result = cache.get("q", () -> {
+                loads.incrementAndGet();
+                return Lists.<String>newArrayList();
+            });
+            assertTrue(result.isEmpty());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        int callers = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> results = Lists.newArrayList();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> cache.get("q", () -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "v1";
+                })));
+            }
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            // 等待其他调用方进入等待
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("v1", result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void boundedWaitTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        try {
+            cache.get("q", () -> "v" + loads.incrementAndGet(), 50L);
+            fail("cold load should time out");
+        } catch (ClientException e) {
+            assertEquals(AlibabaEcsResponseCache.LOAD_TIMEOUT_CODE, e.getErrCode());
+        }
+        // 超时后查询在后台继续, 完成后直接命中缓存
+        assertEquals(1, refreshes.size());
+        refreshes.remove(0).run();
+        assertEquals("v1", cache.get("q", () -> "v" + loads.incrementAndGet(), 50L));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void lruEvictionTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < AlibabaEcsResponseCache.MAX_ENTRIES; i++) {
+            cache.get("q" + i, loads::incrementAndGet);
+        }
+        assertEquals(AlibabaEcsResponseCache.MAX_ENTRIES, cache.size());
+
+        // 访问q0后, 最久未访问的是q1
+        cache.get("q0", loads::incrementAndGet);
+        cache.get("q" + AlibabaEcsResponseCache.MAX_ENTRIES, loads::incrementAndGet);
+        assertEquals(AlibabaEcsResponseCache.MAX_ENTRIES, cache.size());
+        assertEquals(AlibabaEcsResponseCache.MAX_ENTRIES + 1, loads.get());
+
+        cache.get("q0", loads::incrementAndGet);
+        assertEquals(AlibabaEcsResponseCache.MAX_ENTRIES + 1, loads.get());
+        cache.get("q1", loads::incrementAndGet);
+        assertEquals(AlibabaEcsResponseCache.MAX_ENTRIES + 2, loads.get());
+    }
+
+    @Test
+    public void invalidatePrefixTest() throws ClientException {
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("describeImages:linux:Available", loads::incrementAndGet);
+        cache.get("describeVpcs", loads::incrementAndGet);
+        cache.invalidate("describeImages");
+
+        cache.get("describeImages:linux:Available", loads::incrementAndGet);
+        cache.get("describeVpcs", loads::incrementAndGet);
+        assertEquals(3, loads.get());
+    }
+}